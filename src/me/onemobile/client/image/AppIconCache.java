@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.onemobile.client.image;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.SystemClock;
+
+/**
+ * Application icons for <code>pkg://&lt;package name&gt;</code> URIs, scaled
+ * down to the requested size and kept on disk under the package name and
+ * version code, so that an icon is loaded from the PackageManager once per
+ * installed version. Entries are dropped when a package is updated or
+ * removed.
+ * <p>
+ * {@link #preload(Collection, int, int, ImageCache)} loads the icons of many
+ * packages in one pass on a background thread, looking up all versions with
+ * a single PackageManager call.
+ */
+public class AppIconCache {
+	public static final String SCHEME = "pkg";
+
+	private static final String CACHE_DIR_ICONS = "icons";
+	private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 4; // 4MB
+
+	// Pending loader runs and invalidations
+	private static final int LOADER_QUEUE_CAPACITY = 64;
+
+	// Above this many pending icons all versions are looked up in one call
+	private static final int BATCH_LOOKUP_THRESHOLD = 8;
+
+	private static AppIconCache sInstance;
+
+	private final Context mContext;
+	private final PackageManager mPackageManager;
+	private final DiskLruCache mDiskCache;
+	private final WriteBehindQueue mLoader = new WriteBehindQueue(LOADER_QUEUE_CAPACITY, "AppIconCache loader");
+
+	/** The known version codes by package name. */
+	private final HashMap<String, Integer> mVersions = new HashMap<String, Integer>();
+
+	/** The icons waiting for the loader, by memory cache key. */
+	private final LinkedHashMap<String, IconRequest> mPending = new LinkedHashMap<String, IconRequest>();
+
+	private static class IconRequest {
+		final String packageName;
+		final int reqWidth;
+		final int reqHeight;
+		final ImageCache imageCache;
+
+		IconRequest(String packageName, int reqWidth, int reqHeight, ImageCache imageCache) {
+			this.packageName = packageName;
+			this.reqWidth = reqWidth;
+			this.reqHeight = reqHeight;
+			this.imageCache = imageCache;
+		}
+	}
+
+	private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			final Uri data = intent.getData();
+			if (data != null) {
+				invalidate(data.getSchemeSpecificPart());
+			}
+		}
+	};
+
+	private AppIconCache(Context context) {
+		mContext = context.getApplicationContext();
+		mPackageManager = mContext.getPackageManager();
+		mDiskCache = DiskLruCache.openCache(mContext, DiskLruCache.getDiskCacheDir(mContext, CACHE_DIR_ICONS), DEFAULT_DISK_CACHE_SIZE);
+
+		final IntentFilter filter = new IntentFilter();
+		filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+		filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+		filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+		filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+		filter.addDataScheme("package");
+		mContext.registerReceiver(mPackageReceiver, filter);
+	}
+
+	public static synchronized AppIconCache getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new AppIconCache(context);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * @param packageName
+	 * @return The URI to load the icon of a package with
+	 *         {@link ImageWorker#loadImage(Object, android.widget.ImageView, int, int)}
+	 */
+	public static String getUri(String packageName) {
+		return SCHEME + "://" + packageName;
+	}
+
+	/**
+	 * Checks if a URI is a <code>pkg:</code> URI handled by this cache.
+	 * 
+	 * @param uri
+	 * @return
+	 */
+	public static boolean isIconUri(Uri uri) {
+		return uri != null && uri.getScheme() != null && uri.getScheme().equalsIgnoreCase(SCHEME);
+	}
+
+	/**
+	 * Gets the icon of a package from disk, or loads it from the
+	 * PackageManager and stores it. Called on a background thread.
+	 * 
+	 * @param packageName
+	 * @param reqWidth
+	 *            The width the icon is shown at, 0 for full size
+	 * @param reqHeight
+	 *            The height the icon is shown at, 0 for full size
+	 * @return The icon, or null if the package is not installed
+	 */
+	public Bitmap getIcon(String packageName, int reqWidth, int reqHeight) {
+		final PackageInfo info = getPackageInfo(packageName);
+		return info != null ? getIcon(info, reqWidth, reqHeight) : null;
+	}
+
+	private Bitmap getIcon(PackageInfo info, int reqWidth, int reqHeight) {
+		final String key = getDiskCacheKey(info.packageName, info.versionCode, reqWidth, reqHeight);
+		if (mDiskCache != null) {
+			final Bitmap cached = mDiskCache.get(key);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		final Bitmap icon = loadIcon(info, reqWidth, reqHeight);
+		if (icon != null && mDiskCache != null) {
+			mDiskCache.put(key, icon, CompressFormat.PNG, 100);
+		}
+		return icon;
+	}
+
+	/**
+	 * Queues loading the icons of packages into the memory cache of an
+	 * ImageCache, where {@link ImageWorker#loadImage} finds them under
+	 * {@link #getUri(String)}. All queued icons are loaded in one pass on a
+	 * background thread.
+	 * 
+	 * @param packageNames
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param imageCache
+	 */
+	public void preload(Collection<String> packageNames, int reqWidth, int reqHeight, ImageCache imageCache) {
+		if (imageCache == null) {
+			return;
+		}
+		synchronized (mPending) {
+			for (String packageName : packageNames) {
+				final String uri = getUri(packageName);
+				if (imageCache.getBitmapFromMemCache(uri, reqWidth, reqHeight) == null) {
+					mPending.put(uri + '@' + reqWidth + 'x' + reqHeight, new IconRequest(packageName, reqWidth, reqHeight, imageCache));
+				}
+			}
+			if (mPending.isEmpty()) {
+				return;
+			}
+		}
+		// One loader run drains everything queued until it starts
+		mLoader.enqueue(CACHE_DIR_ICONS, new Runnable() {
+			@Override
+			public void run() {
+				loadPending();
+			}
+		});
+	}
+
+	private void loadPending() {
+		final List<IconRequest> requests;
+		synchronized (mPending) {
+			requests = new ArrayList<IconRequest>(mPending.values());
+			mPending.clear();
+		}
+		if (requests.size() >= BATCH_LOOKUP_THRESHOLD) {
+			updateVersions();
+		}
+		for (IconRequest request : requests) {
+			final long startTime = SystemClock.uptimeMillis();
+			final PackageInfo info = getPackageInfo(request.packageName);
+			if (info == null) {
+				continue;
+			}
+			final Bitmap icon = getIcon(info, request.reqWidth, request.reqHeight);
+			if (icon != null) {
+				request.imageCache.addBitmapToMemCache(getUri(request.packageName), request.reqWidth, request.reqHeight, icon,
+						SystemClock.uptimeMillis() - startTime);
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached icons of a package, for example once it is updated.
+	 * 
+	 * @param packageName
+	 */
+	public void invalidate(final String packageName) {
+		synchronized (mVersions) {
+			mVersions.remove(packageName);
+		}
+		ImageCache.removeFromAllMemCaches(getUri(packageName));
+		if (mDiskCache != null) {
+			mLoader.enqueue("invalidate:" + packageName, new Runnable() {
+				@Override
+				public void run() {
+					mDiskCache.deleteDerived(getUri(packageName));
+				}
+			});
+		}
+	}
+
+	/**
+	 * Looks up the version codes of all installed packages at once.
+	 */
+	private void updateVersions() {
+		try {
+			final List<PackageInfo> packages = mPackageManager.getInstalledPackages(0);
+			synchronized (mVersions) {
+				for (PackageInfo info : packages) {
+					mVersions.put(info.packageName, info.versionCode);
+				}
+			}
+		} catch (Exception e) {
+			// The package list may be too large for one binder transaction
+			e.printStackTrace();
+		}
+	}
+
+	private PackageInfo getPackageInfo(String packageName) {
+		synchronized (mVersions) {
+			final Integer versionCode = mVersions.get(packageName);
+			if (versionCode != null) {
+				final PackageInfo info = new PackageInfo();
+				info.packageName = packageName;
+				info.versionCode = versionCode;
+				return info;
+			}
+		}
+		try {
+			final PackageInfo info = mPackageManager.getPackageInfo(packageName, 0);
+			synchronized (mVersions) {
+				mVersions.put(packageName, info.versionCode);
+			}
+			return info;
+		} catch (PackageManager.NameNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Icons are derived entries of the package URI, so that
+	 * {@link DiskLruCache#deleteDerived(String)} drops every version and size.
+	 */
+	private static String getDiskCacheKey(String packageName, int versionCode, int reqWidth, int reqHeight) {
+		return DiskLruCache.createDerivedKey(versionCode + "-" + reqWidth + "x" + reqHeight, getUri(packageName));
+	}
+
+	/**
+	 * Draws the icon of a package into a bitmap no larger than requested.
+	 */
+	private Bitmap loadIcon(PackageInfo info, int reqWidth, int reqHeight) {
+		try {
+			final Drawable drawable = info.applicationInfo != null ? mPackageManager.getApplicationIcon(info.applicationInfo)
+					: mPackageManager.getApplicationIcon(info.packageName);
+			int width = Math.max(drawable.getIntrinsicWidth(), 1);
+			int height = Math.max(drawable.getIntrinsicHeight(), 1);
+			if (reqWidth > 0 && reqHeight > 0 && (width > reqWidth || height > reqHeight)) {
+				final float scale = Math.min((float) reqWidth / width, (float) reqHeight / height);
+				width = Math.max(Math.round(width * scale), 1);
+				height = Math.max(Math.round(height * scale), 1);
+			}
+			final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			drawable.setBounds(0, 0, width, height);
+			drawable.draw(new Canvas(bitmap));
+			return bitmap;
+		} catch (PackageManager.NameNotFoundException e) {
+			return null;
+		} catch (OutOfMemoryError e) {
+			e.printStackTrace();
+			ImageCache.onOutOfMemory();
+			return null;
+		}
+	}
+}
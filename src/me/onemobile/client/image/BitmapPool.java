@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.onemobile.client.image;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Bitmaps that are no longer in use, kept for decoding new images into
+ * with {@link BitmapFactory.Options#inBitmap} instead of allocating. Bitmaps
+ * are grouped by size and the pool has a byte budget of its own, the oldest
+ * bitmaps are dropped first.
+ * <p>
+ * Before KitKat a bitmap can only be reused for an image of exactly the same
+ * size that is not sampled down and is a JPEG or PNG, the pool only hands out
+ * bitmaps meeting these rules.
+ */
+public class BitmapPool {
+	private final int mMaxSize;
+	private int mSize;
+	private int mHitCount;
+	private int mMissCount;
+
+	/** The pooled bitmaps by size, see {@link #sizeKey(int, int)}. */
+	private final HashMap<Long, LinkedList<Bitmap>> mBuckets = new HashMap<Long, LinkedList<Bitmap>>();
+
+	/** The pooled bitmaps from oldest to newest. */
+	private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+
+	private OnReuseListener mOnReuseListener;
+
+	/**
+	 * Told when a pooled bitmap is handed out to be decoded into, its pixels
+	 * are about to be overwritten.
+	 */
+	public interface OnReuseListener {
+		public void onReuse(Bitmap bitmap);
+	}
+
+	/**
+	 * @param maxSize
+	 *            The maximum total size of the pooled bitmaps in bytes
+	 */
+	public BitmapPool(int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	public synchronized void setOnReuseListener(OnReuseListener listener) {
+		mOnReuseListener = listener;
+	}
+
+	/**
+	 * Checks if decodes can reuse bitmaps on this platform.
+	 * 
+	 * @return
+	 */
+	public static boolean isSupported() {
+		return Utils.hasHoneycomb();
+	}
+
+	/**
+	 * Adds a bitmap that is no longer used. Immutable bitmaps and bitmaps
+	 * larger than the whole pool are ignored.
+	 * 
+	 * @param bitmap
+	 */
+	public synchronized void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || !isSupported()) {
+			return;
+		}
+		final int size = Utils.getBitmapSize(bitmap);
+		if (size > mMaxSize) {
+			return;
+		}
+		final Long key = sizeKey(bitmap.getWidth(), bitmap.getHeight());
+		LinkedList<Bitmap> bucket = mBuckets.get(key);
+		if (bucket == null) {
+			bucket = new LinkedList<Bitmap>();
+			mBuckets.put(key, bucket);
+		} else if (bucket.contains(bitmap)) {
+			return;
+		}
+		bucket.addLast(bitmap);
+		mOrder.addLast(bitmap);
+		mSize += size;
+		trimToSize(mMaxSize);
+	}
+
+	/**
+	 * Takes a bitmap an image can be decoded into.
+	 * 
+	 * @param options
+	 *            The options of the decode, with the bounds, sample size and
+	 *            preferred config set
+	 * @return A bitmap to set as {@link BitmapFactory.Options#inBitmap}, or
+	 *         null if there is no compatible one
+	 */
+	public synchronized Bitmap get(BitmapFactory.Options options) {
+		if (options.inSampleSize > 1 || !isReusableFormat(options.outMimeType)) {
+			mMissCount++;
+			return null;
+		}
+		final Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+		final LinkedList<Bitmap> bucket = mBuckets.get(sizeKey(options.outWidth, options.outHeight));
+		if (bucket != null) {
+			for (Bitmap bitmap : bucket) {
+				if (bitmap.getConfig() == config && !bitmap.isRecycled()) {
+					remove(bitmap);
+					mHitCount++;
+					if (mOnReuseListener != null) {
+						mOnReuseListener.onReuse(bitmap);
+					}
+					return bitmap;
+				}
+			}
+		}
+		mMissCount++;
+		return null;
+	}
+
+	/**
+	 * Drops pooled bitmaps until the pool is at most the given size.
+	 * 
+	 * @param maxSize
+	 *            The size in bytes, 0 empties the pool
+	 */
+	public synchronized void trimToSize(int maxSize) {
+		while (mSize > maxSize && !mOrder.isEmpty()) {
+			remove(mOrder.getFirst());
+		}
+	}
+
+	/**
+	 * Drops all pooled bitmaps.
+	 */
+	public void clear() {
+		trimToSize(0);
+	}
+
+	/**
+	 * Takes a bitmap back out of the pool, for example because it is shown
+	 * again.
+	 * 
+	 * @param bitmap
+	 * @return true if the bitmap was pooled
+	 */
+	public synchronized boolean remove(Bitmap bitmap) {
+		final Long key = sizeKey(bitmap.getWidth(), bitmap.getHeight());
+		final LinkedList<Bitmap> bucket = mBuckets.get(key);
+		if (bucket != null && bucket.remove(bitmap)) {
+			if (bucket.isEmpty()) {
+				mBuckets.remove(key);
+			}
+			mOrder.remove(bitmap);
+			mSize -= Utils.getBitmapSize(bitmap);
+			return true;
+		}
+		return false;
+	}
+
+	private static Long sizeKey(int width, int height) {
+		return ((long) width << 32) | (height & 0xffffffffL);
+	}
+
+	private static boolean isReusableFormat(String mimeType) {
+		return "image/jpeg".equals(mimeType) || "image/png".equals(mimeType);
+	}
+
+	/**
+	 * @return The total size of the pooled bitmaps in bytes
+	 */
+	public synchronized int getSize() {
+		return mSize;
+	}
+
+	public int getMaxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * @return The number of decodes that got a bitmap from the pool
+	 */
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * @return The number of decodes that found no compatible bitmap
+	 */
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.onemobile.client.image;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+
+/**
+ * A BitmapDrawable that holds a lease on its bitmap in the {@link ImageCache}
+ * while it is displayed, see {@link ImageCache#acquire(Bitmap)}. A bitmap
+ * with a lease is never handed to a decode for reuse.
+ */
+public class CountingBitmapDrawable extends BitmapDrawable {
+	private final ImageCache mImageCache;
+	private boolean mDisplayed;
+
+	/**
+	 * @param res
+	 * @param bitmap
+	 * @param imageCache
+	 *            The cache to lease the bitmap from, or null
+	 */
+	public CountingBitmapDrawable(Resources res, Bitmap bitmap, ImageCache imageCache) {
+		super(res, bitmap);
+		mImageCache = imageCache;
+	}
+
+	/**
+	 * Acquires the lease when the drawable is attached to a view and releases
+	 * it when the drawable is replaced. Repeated calls with the same value
+	 * have no effect.
+	 * 
+	 * @param isDisplayed
+	 */
+	public void setIsDisplayed(boolean isDisplayed) {
+		synchronized (this) {
+			if (mDisplayed == isDisplayed) {
+				return;
+			}
+			mDisplayed = isDisplayed;
+		}
+		if (mImageCache != null && getBitmap() != null) {
+			if (isDisplayed) {
+				mImageCache.acquire(getBitmap());
+			} else {
+				mImageCache.release(getBitmap());
+			}
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.onemobile.client.image;
+
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+
+/**
+ * Admits bitmap decodes by count and by the estimated size of the decoded
+ * bitmaps, so that decodes run in parallel without risking running out of
+ * memory. Decodes are admitted in arrival order, a decode larger than the
+ * whole byte budget runs alone.
+ */
+public class DecodeGovernor {
+	/** Default number of decodes running at the same time. */
+	public static final int DEFAULT_MAX_DECODES = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	/** Default share of the heap the decoded bitmaps in flight may take. */
+	public static final int DEFAULT_MAX_BYTES_FRACTION = 8;
+
+	/** Default share of the heap for decodes reading a download. */
+	public static final int DEFAULT_MAX_STREAM_BYTES_FRACTION = 16;
+
+	private static final DecodeGovernor sInstance = new DecodeGovernor(DEFAULT_MAX_DECODES, Runtime.getRuntime().maxMemory()
+			/ DEFAULT_MAX_BYTES_FRACTION);
+
+	private static final DecodeGovernor sStreamInstance = new DecodeGovernor(DEFAULT_MAX_DECODES, Runtime.getRuntime().maxMemory()
+			/ DEFAULT_MAX_STREAM_BYTES_FRACTION);
+
+	private int mMaxDecodes;
+	private long mMaxBytes;
+	private int mDecodes;
+	private long mBytes;
+
+	/** The decodes waiting to be admitted, first come first served. */
+	private final LinkedList<Object> mWaiting = new LinkedList<Object>();
+
+	private int mAdmittedCount;
+	private int mWaitCount;
+	private long mTotalWaitTime;
+	private long mMaxWaitTime;
+
+	/**
+	 * @param maxDecodes
+	 *            The maximum number of decodes running at the same time
+	 * @param maxBytes
+	 *            The maximum estimated size of the bitmaps being decoded at
+	 *            the same time in bytes
+	 */
+	public DecodeGovernor(int maxDecodes, long maxBytes) {
+		setLimits(maxDecodes, maxBytes);
+	}
+
+	/**
+	 * @return The governor used by the {@link ImageResizer} decode methods
+	 */
+	public static DecodeGovernor getInstance() {
+		return sInstance;
+	}
+
+	/**
+	 * @return The governor of decodes that read a download as it arrives.
+	 *         They hold their slot for the whole transfer, so they are kept
+	 *         apart from decodes of cached files, which would otherwise wait
+	 *         on the network.
+	 */
+	public static DecodeGovernor getStreamInstance() {
+		return sStreamInstance;
+	}
+
+	/**
+	 * Changes the limits, waiting decodes are admitted right away if they fit
+	 * now.
+	 * 
+	 * @param maxDecodes
+	 * @param maxBytes
+	 */
+	public synchronized void setLimits(int maxDecodes, long maxBytes) {
+		mMaxDecodes = Math.max(1, maxDecodes);
+		mMaxBytes = Math.max(1, maxBytes);
+		notifyAll();
+	}
+
+	/**
+	 * Estimates the size of a decoded bitmap.
+	 * 
+	 * @param options
+	 *            Options with the bounds, inSampleSize and inPreferredConfig
+	 *            set
+	 * @return The size in bytes
+	 */
+	public static long estimateBytes(BitmapFactory.Options options) {
+		final int sampleSize = Math.max(1, options.inSampleSize);
+		final long width = Math.max(0, options.outWidth) / sampleSize;
+		final long height = Math.max(0, options.outHeight) / sampleSize;
+		return width * height * bytesPerPixel(options.inPreferredConfig);
+	}
+
+	private static int bytesPerPixel(Bitmap.Config config) {
+		if (config == Bitmap.Config.ALPHA_8) {
+			return 1;
+		} else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+			return 2;
+		}
+		return 4;
+	}
+
+	/**
+	 * Waits until a decode may run. Every successful call must be followed
+	 * by {@link #release(long)} with the same size.
+	 * 
+	 * @param bytes
+	 *            The estimated size of the decoded bitmap
+	 * @return false if the thread was interrupted while waiting, the decode
+	 *         must not run then. The interrupt status is kept, so that a
+	 *         caller can tell a cancelled decode from a bad image.
+	 */
+	public synchronized boolean acquire(long bytes) {
+		if (mWaiting.isEmpty() && fits(bytes)) {
+			admit(bytes);
+			return true;
+		}
+
+		final Object turn = new Object();
+		mWaiting.addLast(turn);
+		final long startTime = SystemClock.uptimeMillis();
+		try {
+			while (mWaiting.getFirst() != turn || !fits(bytes)) {
+				wait();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			mWaiting.remove(turn);
+			// The next in line may fit as well
+			notifyAll();
+		}
+		final long waitTime = SystemClock.uptimeMillis() - startTime;
+		mWaitCount++;
+		mTotalWaitTime += waitTime;
+		mMaxWaitTime = Math.max(mMaxWaitTime, waitTime);
+		admit(bytes);
+		return true;
+	}
+
+	/**
+	 * Tells that a decode admitted by {@link #acquire(long)} is done.
+	 * 
+	 * @param bytes
+	 *            The size passed to {@link #acquire(long)}
+	 */
+	public synchronized void release(long bytes) {
+		mDecodes--;
+		mBytes -= bytes;
+		notifyAll();
+	}
+
+	private boolean fits(long bytes) {
+		// A decode larger than the budget still runs once nothing else does
+		return mDecodes < mMaxDecodes && (mDecodes == 0 || mBytes + bytes <= mMaxBytes);
+	}
+
+	private void admit(long bytes) {
+		mDecodes++;
+		mBytes += bytes;
+		mAdmittedCount++;
+	}
+
+	/**
+	 * @return The number of decodes running now
+	 */
+	public synchronized int getDecodeCount() {
+		return mDecodes;
+	}
+
+	/**
+	 * @return The estimated size of the bitmaps being decoded now in bytes
+	 */
+	public synchronized long getByteCount() {
+		return mBytes;
+	}
+
+	/**
+	 * @return The number of decodes waiting to be admitted
+	 */
+	public synchronized int getQueueLength() {
+		return mWaiting.size();
+	}
+
+	/**
+	 * @return The number of decodes admitted so far
+	 */
+	public synchronized int getAdmittedCount() {
+		return mAdmittedCount;
+	}
+
+	/**
+	 * @return The number of admitted decodes that had to wait
+	 */
+	public synchronized int getWaitCount() {
+		return mWaitCount;
+	}
+
+	/**
+	 * @return The total time admitted decodes waited in milliseconds
+	 */
+	public synchronized long getTotalWaitTime() {
+		return mTotalWaitTime;
+	}
+
+	/**
+	 * @return The longest time a decode waited in milliseconds
+	 */
+	public synchronized long getMaxWaitTime() {
+		return mMaxWaitTime;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "decodes " + mDecodes + "/" + mMaxDecodes + ", bytes " + mBytes + "/" + mMaxBytes + ", waiting " + mWaiting.size()
+				+ ", admitted " + mAdmittedCount + " waited " + mWaitCount + " for " + mTotalWaitTime + "ms (max " + mMaxWaitTime + "ms)";
+	}
+}
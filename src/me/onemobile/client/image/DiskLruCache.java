@@ -16,17 +16,40 @@
 
 package me.onemobile.client.image;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -40,23 +63,192 @@ import android.os.Environment;
  * can be found in the ICS source code
  * (libcore/luni/src/main/java/libcore/io/DiskLruCache.java) and is preferable
  * to this simple implementation.
+ * <p>
+ * The LRU order and the size of every entry are kept in an append-only
+ * journal in the cache directory, so a new process can restore the index
+ * without touching the cache files. Each line of the journal is one record:
+ *
+ * <pre>
+ *     CLEAN 2048 http://example.com/a.png
+ *     DIRTY http://example.com/b.png
+ *     REMOVE http://example.com/c.png
+ *     READ http://example.com/a.png
+ * </pre>
+ *
+ * A DIRTY record marks a file that is being written, it is followed by either
+ * a CLEAN record with the final size or a REMOVE record. A READ record moves
+ * the entry to the head of the LRU order. The journal is compacted once it
+ * holds too many redundant records.
+ * <p>
+ * Cache files are named after the MD5 digest of their key and spread over
+ * two levels of sub-directories using the first two hex digits of the
+ * digest, e.g. <code>images/3/f/i_3fa2...</code>, which keeps every directory
+ * small as the cache grows.
+ * <p>
+ * Optionally, see {@link #setPackMaxSize(int)}, small entries are moved from
+ * their own file into a {@link PackFileStore} shortly after they are
+ * committed. The journal then holds a PACKED record with the segment and
+ * offset of the entry, <code>PACKED 3 40960 2048 http://example.com/a.png</code>,
+ * and the entry is read with {@link #getPackedData(String)}.
+ * <p>
+ * Entries whose key starts with {@link #DERIVED_KEY_PREFIX} can be rebuilt
+ * from another entry, such as downscaled copies, and are evicted before
+ * all other entries, see {@link #createDerivedKey(String, String)}.
  */
 public class DiskLruCache {
 	private static final String TAG = "DiskLruCache";
 	private static final String CACHE_FILENAME_PREFIX = "i_";
-	private static final int MAX_REMOVALS = 6;
+	private static final int TRIM_BATCH_SIZE = 16;
+	/** Trimming stops once the cache is back under this share of its limits. */
+	private static final float LOW_WATER_FRACTION = 0.9f;
 	private static final int INITIAL_CAPACITY = 32;
 	private static final float LOAD_FACTOR = 0.75f;
+	private static final int CONCURRENCY_LEVEL = 8;
+	private static final int READ_BUFFER_DRAIN_THRESHOLD = 64;
+
+	static final String JOURNAL_FILE = "journal";
+	static final String JOURNAL_FILE_TMP = "journal.tmp";
+	static final String MAGIC = "me.onemobile.client.image.DiskLruCache";
+	static final String VERSION = "2";
+	/** Journals of this version name their files after key.hashCode(). */
+	private static final String VERSION_HASHCODE_NAMES = "1";
+	private static final String CLEAN = "CLEAN";
+	private static final String DIRTY = "DIRTY";
+	private static final String REMOVE = "REMOVE";
+	private static final String READ = "READ";
+	private static final String PACKED = "PACKED";
+	static final String TMP_FILE_SUFFIX = ".tmp";
+
+	/**
+	 * Suffix of the metadata file kept next to a cache file, see
+	 * {@link #getMetadataFile(String)}.
+	 */
+	private static final String META_FILE_SUFFIX = ".meta";
+
+	/**
+	 * Prefix of the keys of entries derived from other entries, they are the
+	 * first to be evicted.
+	 */
+	public static final String DERIVED_KEY_PREFIX = "derived:";
+
+	/** Encode buffers larger than this are not kept for reuse. */
+	private static final int MAX_REUSED_BUFFER_SIZE = 1024 * 512;
+	private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+	/** Assumed entry size when sizing the admission filter of an empty cache. */
+	private static final int TYPICAL_ENTRY_SIZE = 1024 * 16;
+
+	/** Smallest average entry size assumed when sizing the admission filter. */
+	private static final int MIN_ENTRY_SIZE = 1024;
+
+	/**
+	 * Most keys the admission filter is sized for, its table takes 8 bytes
+	 * per key.
+	 */
+	private static final int MAX_ADMISSION_FILTER_KEYS = 1 << 15;
+
+	/**
+	 * Open caches by directory, so the download path and the ImageCache share
+	 * one index and one journal.
+	 */
+	private static final Map<String, DiskLruCache> sOpenCaches = new HashMap<String, DiskLruCache>();
 
 	public static File mCacheDir;
+	private final File mDirectory;
 	private int cacheSize = 0;
-	private int cacheByteSize = 0;
-	private final int maxCacheItemSize = 64; // 64 item default
+	private long cacheByteSize = 0;
+	private int derivedCacheSize = 0;
+	private long derivedCacheByteSize = 0;
+	private int maxCacheItemSize = 0; // no item limit by default
 	private long maxCacheByteSize = 1024 * 1024 * 5; // 5MB default
 	private CompressFormat mCompressFormat = CompressFormat.PNG;
 	private int mCompressQuality = 85;
 
-	private final Map<String, String> mLinkedHashMap = Collections.synchronizedMap(new LinkedHashMap<String, String>(INITIAL_CAPACITY, LOAD_FACTOR, true));
+	private PackFileStore mPackStore;
+	private int mPackMaxSize = 0; // packing disabled by default
+	private final AtomicBoolean mCompactionScheduled = new AtomicBoolean();
+	private final Runnable mCompactionTask = new Runnable() {
+		@Override
+		public void run() {
+			mCompactionScheduled.set(false);
+			compactPackSegments();
+		}
+	};
+
+	/**
+	 * The index. Lookups read it without locking, recency is tracked by
+	 * stamping entries from {@link #mClock} rather than by reordering a list.
+	 */
+	private final ConcurrentHashMap<String, CacheEntry> mIndex = new ConcurrentHashMap<String, CacheEntry>(INITIAL_CAPACITY, LOAD_FACTOR,
+			CONCURRENCY_LEVEL);
+
+	/**
+	 * Guards changes to the index, the size totals and the journal.
+	 */
+	private final Object mLock = new Object();
+	private final AtomicLong mClock = new AtomicLong();
+
+	/**
+	 * Use counts of recently seen keys, null unless the admission filter is
+	 * enabled, see {@link #setAdmissionFilterEnabled(boolean)}.
+	 */
+	private volatile FrequencySketch mSketch;
+
+	/**
+	 * Expiry times of entries, filled at download time or from the metadata
+	 * file on first use, so that freshness checks on hits don't read it.
+	 */
+	private final ConcurrentHashMap<String, Long> mExpiries = new ConcurrentHashMap<String, Long>();
+
+	/** The clock at the start of the previous trim. */
+	private long mLastTrimStart;
+
+	/**
+	 * Keys read since the last drain, written to the journal as READ records
+	 * by the background thread.
+	 */
+	private final ConcurrentLinkedQueue<String> mReadBuffer = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger mReadBufferSize = new AtomicInteger();
+	private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+	private final Runnable mDrainTask = new Runnable() {
+		@Override
+		public void run() {
+			mDrainScheduled.set(false);
+			drainReadBuffer();
+		}
+	};
+
+	private Writer mJournalWriter;
+	private int mRedundantOpCount;
+
+	/**
+	 * Evicts entries and writes READ records in the background, so neither
+	 * a put nor a lookup waits for the disk.
+	 */
+	private final ThreadPoolExecutor mBackgroundExecutor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "DiskLruCache");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+	private final AtomicBoolean mTrimScheduled = new AtomicBoolean();
+	private final Runnable mTrimTask = new Runnable() {
+		@Override
+		public void run() {
+			mTrimScheduled.set(false);
+			trimToLowWater();
+		}
+	};
+
+	/**
+	 * True when no journal existed on open. Files written by an older version
+	 * can then only be found by probing the file system.
+	 */
+	private volatile boolean mLegacyLookup;
 
 	/**
 	 * A filename filter to use to identify the cache filenames which have
@@ -70,7 +262,80 @@ public class DiskLruCache {
 	};
 
 	/**
-	 * Used to fetch an instance of DiskLruCache.
+	 * A filename filter to identify the fan-out sub-directories.
+	 */
+	private static final FilenameFilter fanOutDirFilter = new FilenameFilter() {
+		@Override
+		public boolean accept(File dir, String filename) {
+			return filename.length() == 1 && Character.digit(filename.charAt(0), 16) != -1;
+		}
+	};
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * An entry of the index: the cache file, or the location in the pack
+	 * store for packed entries, its size in bytes and the stamp of its last
+	 * access.
+	 */
+	private static final class CacheEntry {
+		final String key;
+		final String file;
+		final PackFileStore.Location location;
+		final long size;
+		final boolean derived;
+		volatile long accessOrder;
+
+		CacheEntry(String key, String file, long size, long accessOrder) {
+			this(key, file, null, size, accessOrder);
+		}
+
+		CacheEntry(String key, String file, PackFileStore.Location location, long size, long accessOrder) {
+			this.key = key;
+			this.file = file;
+			this.location = location;
+			this.size = size;
+			this.derived = key.startsWith(DERIVED_KEY_PREFIX);
+			this.accessOrder = accessOrder;
+		}
+	}
+
+	/**
+	 * An entry together with its access stamp at the time of a snapshot, so
+	 * that sorting is not disturbed by concurrent lookups.
+	 */
+	private static final class LruCandidate implements Comparable<LruCandidate> {
+		final CacheEntry entry;
+		final long accessOrder;
+		int frequency;
+
+		LruCandidate(CacheEntry entry) {
+			this.entry = entry;
+			this.accessOrder = entry.accessOrder;
+		}
+
+		@Override
+		public int compareTo(LruCandidate another) {
+			return accessOrder < another.accessOrder ? -1 : (accessOrder == another.accessOrder ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Orders derived entries before all others, then by access.
+	 */
+	private static final Comparator<LruCandidate> EVICTION_ORDER = new Comparator<LruCandidate>() {
+		@Override
+		public int compare(LruCandidate lhs, LruCandidate rhs) {
+			if (lhs.entry.derived != rhs.entry.derived) {
+				return lhs.entry.derived ? -1 : 1;
+			}
+			return lhs.compareTo(rhs);
+		}
+	};
+
+	/**
+	 * Used to fetch an instance of DiskLruCache. Instances are shared per
+	 * directory, the journal is replayed when a directory is first opened.
 	 * 
 	 * @param context
 	 * @param cacheDir
@@ -81,12 +346,22 @@ public class DiskLruCache {
 		if (cacheDir == null) {
 			return null;
 		}
-		if (!cacheDir.exists()) {
-			cacheDir.mkdirs();
-		}
+		synchronized (sOpenCaches) {
+			DiskLruCache cache = sOpenCaches.get(cacheDir.getAbsolutePath());
+			if (cache != null) {
+				return cache;
+			}
+
+			if (!cacheDir.exists()) {
+				cacheDir.mkdirs();
+			}
 
-		if (cacheDir.isDirectory() && cacheDir.canWrite() && Utils.getUsableSpace(cacheDir) > maxByteSize) {
-			return new DiskLruCache(cacheDir, maxByteSize);
+			if (cacheDir.isDirectory() && cacheDir.canWrite() && Utils.getUsableSpace(cacheDir) > maxByteSize) {
+				cache = new DiskLruCache(cacheDir, maxByteSize);
+				cache.openJournal();
+				sOpenCaches.put(cacheDir.getAbsolutePath(), cache);
+				return cache;
+			}
 		}
 
 		return null;
@@ -104,11 +379,243 @@ public class DiskLruCache {
 		if (mCacheDir == null) {
 			mCacheDir = cacheDir;
 		}
+		mDirectory = cacheDir;
 		maxCacheByteSize = maxByteSize;
 	}
 
 	/**
-	 * Add a bitmap to the disk cache.
+	 * Replays the journal into the index, or starts a new journal if there
+	 * is none or it can't be read.
+	 */
+	private void openJournal() {
+		synchronized (mLock) {
+			mPackStore = new PackFileStore(mDirectory);
+			final File journal = new File(mDirectory, JOURNAL_FILE);
+			if (journal.exists()) {
+				try {
+					final boolean migrated = readJournal(journal);
+					mJournalWriter = newJournalWriter(journal);
+					if (migrated || mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD) {
+						rebuildJournal();
+					}
+					// Old files that were not asked for during the previous
+					// session are not going to be found anymore
+					deleteLegacyFiles(mDirectory);
+					for (CacheEntry entry : mIndex.values()) {
+						if (entry.location != null) {
+							mPackStore.retain(entry.location);
+						}
+					}
+					scheduleCompaction();
+					return;
+				} catch (final IOException e) {
+					e.printStackTrace();
+					mIndex.clear();
+					resetSizes();
+				}
+			}
+			mPackStore.clear();
+			mLegacyLookup = true;
+			rebuildJournal();
+		}
+	}
+
+	/**
+	 * Reads the journal into the index.
+	 * 
+	 * @return true if the entries were moved to the current file naming and
+	 *         the journal needs to be rewritten
+	 */
+	private boolean readJournal(File journal) throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"), Utils.IO_BUFFER_SIZE);
+		try {
+			if (!MAGIC.equals(reader.readLine())) {
+				throw new IOException("unexpected journal header");
+			}
+			final String version = reader.readLine();
+			final boolean hashCodeNames = VERSION_HASHCODE_NAMES.equals(version);
+			if (!hashCodeNames && !VERSION.equals(version)) {
+				throw new IOException("unexpected journal version " + version);
+			}
+
+			final Set<String> dirtyKeys = new HashSet<String>();
+			int lineCount = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineCount++;
+				final int firstSpace = line.indexOf(' ');
+				if (firstSpace == -1) {
+					continue; // truncated record
+				}
+				final String op = line.substring(0, firstSpace);
+				if (CLEAN.equals(op)) {
+					final int secondSpace = line.indexOf(' ', firstSpace + 1);
+					if (secondSpace == -1) {
+						continue;
+					}
+					final String key = line.substring(secondSpace + 1);
+					final long size;
+					try {
+						size = Long.parseLong(line.substring(firstSpace + 1, secondSpace));
+					} catch (final NumberFormatException e) {
+						continue;
+					}
+					dirtyKeys.remove(key);
+					indexEntry(key, new CacheEntry(key, createFilePath(mDirectory, key), size, mClock.incrementAndGet()));
+				} else if (PACKED.equals(op)) {
+					final String[] fields = line.split(" ", 5);
+					if (fields.length < 5) {
+						continue;
+					}
+					final String key = fields[4];
+					final PackFileStore.Location location;
+					try {
+						location = new PackFileStore.Location(Integer.parseInt(fields[1]), Long.parseLong(fields[2]), Integer.parseInt(fields[3]));
+					} catch (final NumberFormatException e) {
+						continue;
+					}
+					dirtyKeys.remove(key);
+					indexEntry(key, new CacheEntry(key, createFilePath(mDirectory, key), location, location.length, mClock.incrementAndGet()));
+				} else {
+					final String key = line.substring(firstSpace + 1);
+					if (DIRTY.equals(op)) {
+						dirtyKeys.add(key);
+					} else if (REMOVE.equals(op)) {
+						dirtyKeys.remove(key);
+						unindexEntry(key);
+					} else if (READ.equals(op)) {
+						final CacheEntry entry = mIndex.get(key);
+						if (entry != null) {
+							entry.accessOrder = mClock.incrementAndGet();
+						}
+					}
+				}
+			}
+
+			// Writes that never completed leave partial files behind
+			for (String key : dirtyKeys) {
+				unindexEntry(key);
+				final String file = hashCodeNames ? createLegacyFilePath(mDirectory, key) : createFilePath(mDirectory, key);
+				deleteEntryFiles(file);
+				deleteTempFiles(file);
+			}
+			mRedundantOpCount = lineCount - mIndex.size();
+
+			if (hashCodeNames) {
+				final String[] keys = mIndex.keySet().toArray(new String[mIndex.size()]);
+				for (String key : keys) {
+					if (mIndex.get(key).location == null && !migrateLegacyFile(key)) {
+						unindexEntry(key);
+					}
+				}
+			}
+			return hashCodeNames;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Writes a compact journal holding one CLEAN record per entry in LRU
+	 * order, replacing the current journal.
+	 */
+	private void rebuildJournal() {
+		closeJournalWriter();
+		final File journal = new File(mDirectory, JOURNAL_FILE);
+		final File journalTmp = new File(mDirectory, JOURNAL_FILE_TMP);
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalTmp), "UTF-8"), Utils.IO_BUFFER_SIZE);
+			writer.write(MAGIC);
+			writer.write('\n');
+			writer.write(VERSION);
+			writer.write('\n');
+			for (LruCandidate candidate : snapshotByAccessOrder()) {
+				final CacheEntry entry = candidate.entry;
+				if (entry.location != null) {
+					writeRecord(writer, packedRecord(entry.location), entry.key);
+				} else {
+					writeRecord(writer, CLEAN + ' ' + entry.size, entry.key);
+				}
+			}
+			writer.close();
+			writer = null;
+			if (!journalTmp.renameTo(journal)) {
+				journal.delete();
+				journalTmp.renameTo(journal);
+			}
+			mJournalWriter = newJournalWriter(journal);
+			mRedundantOpCount = 0;
+		} catch (final IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (final IOException e) {
+				}
+			}
+		}
+	}
+
+	private static Writer newJournalWriter(File journal) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, true), "UTF-8"), Utils.IO_BUFFER_SIZE);
+	}
+
+	private static String packedRecord(PackFileStore.Location location) {
+		return PACKED + ' ' + location.segment + ' ' + location.offset + ' ' + location.length;
+	}
+
+	private static void writeRecord(Writer writer, String op, String key) throws IOException {
+		writer.write(op);
+		writer.write(' ');
+		writer.write(key);
+		writer.write('\n');
+	}
+
+	/**
+	 * Appends a record to the journal. Must be called holding the index
+	 * lock. READ records are not flushed right away, losing a few of them
+	 * only costs LRU precision.
+	 */
+	private void journal(String op, String key) {
+		journal(op, key, !READ.equals(op));
+	}
+
+	private void journal(String op, String key, boolean flush) {
+		if (mJournalWriter == null || key.indexOf('\n') != -1 || key.indexOf('\r') != -1) {
+			return;
+		}
+		try {
+			writeRecord(mJournalWriter, op, key);
+			if (flush) {
+				mJournalWriter.flush();
+			}
+			mRedundantOpCount++;
+			if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && mRedundantOpCount >= mIndex.size()) {
+				rebuildJournal();
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void closeJournalWriter() {
+		if (mJournalWriter != null) {
+			try {
+				mJournalWriter.close();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+			mJournalWriter = null;
+		}
+	}
+
+	/**
+	 * Add a bitmap to the disk cache. The bitmap is encoded with the format
+	 * and quality set by {@link #setCompressParams(CompressFormat, int)},
+	 * unless the key is already cached, for example with the bytes it was
+	 * downloaded as.
 	 * 
 	 * @param key
 	 *            A unique identifier for the bitmap.
@@ -116,49 +623,592 @@ public class DiskLruCache {
 	 *            The bitmap to store.
 	 */
 	public void put(String key, Bitmap data) {
-		synchronized (mLinkedHashMap) {
-			if (!mLinkedHashMap.containsKey(key) || mLinkedHashMap.get(key) == null) {
+		put(key, data, mCompressFormat, mCompressQuality);
+	}
+
+	/**
+	 * Add a bitmap to the disk cache, encoded with the given format and
+	 * quality.
+	 * 
+	 * @param key
+	 *            A unique identifier for the bitmap.
+	 * @param data
+	 *            The bitmap to store.
+	 * @param compressFormat
+	 * @param quality
+	 */
+	public void put(String key, Bitmap data, CompressFormat compressFormat, int quality) {
+		if (data == null || containsKey(key)) {
+			return;
+		}
+		final String file = edit(key);
+		File tmpFile = null;
+		boolean written = false;
+		try {
+			tmpFile = createTempFile(key);
+			written = writeBitmapToFile(data, tmpFile.getPath(), compressFormat, quality);
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		synchronized (mLock) {
+			if (written && mIndex.containsKey(key)) {
+				// The original was committed meanwhile, keep it
+				tmpFile.delete();
+				abort(key);
+			} else if (written && tmpFile.renameTo(new File(file))) {
+				commit(key);
+			} else {
+				if (tmpFile != null) {
+					tmpFile.delete();
+				}
+				abort(key);
+			}
+		}
+	}
+
+	private void put(String key, String file) {
+		final FrequencySketch sketch = mSketch;
+		if (sketch != null) {
+			sketch.increment(key);
+		}
+		final CacheEntry entry = new CacheEntry(key, file, new File(file).length(), mClock.incrementAndGet());
+		indexEntry(key, entry);
+		journal(CLEAN + ' ' + entry.size, key);
+		if (entry.size <= mPackMaxSize) {
+			schedulePacking(entry);
+		}
+	}
+
+	private void indexEntry(String key, CacheEntry entry) {
+		final CacheEntry previous = mIndex.put(key, entry);
+		if (previous != null) {
+			cacheByteSize -= previous.size;
+			countDerived(previous, -1);
+			releasePacked(previous);
+		}
+		cacheSize = mIndex.size();
+		cacheByteSize += entry.size;
+		countDerived(entry, 1);
+	}
+
+	private CacheEntry unindexEntry(String key) {
+		final CacheEntry previous = mIndex.remove(key);
+		mExpiries.remove(key);
+		if (previous != null) {
+			cacheByteSize -= previous.size;
+			cacheSize = mIndex.size();
+			countDerived(previous, -1);
+			releasePacked(previous);
+		}
+		return previous;
+	}
+
+	private void countDerived(CacheEntry entry, int sign) {
+		if (entry.derived) {
+			derivedCacheSize += sign;
+			derivedCacheByteSize += sign * entry.size;
+		}
+	}
+
+	private void resetSizes() {
+		cacheSize = 0;
+		cacheByteSize = 0;
+		derivedCacheSize = 0;
+		derivedCacheByteSize = 0;
+	}
+
+	private void releasePacked(CacheEntry entry) {
+		if (entry.location != null && mPackStore != null) {
+			mPackStore.release(entry.location);
+			scheduleCompaction();
+		}
+	}
+
+	/**
+	 * Enables packing entries up to the given size into shared segment
+	 * files. Packed entries are read with {@link #getPackedData(String)},
+	 * {@link #getCacheFile(String)} returns an empty path for them.
+	 * 
+	 * @param maxSize
+	 *            The largest entry to pack in bytes, 0 disables packing
+	 */
+	public void setPackMaxSize(int maxSize) {
+		mPackMaxSize = maxSize;
+	}
+
+	/**
+	 * Moves a loose entry into the pack store on the background thread. The
+	 * file is deleted as soon as the packed copy is indexed, a caller that
+	 * was handed its path before then has to fall back to
+	 * {@link #getPackedData(String)}.
+	 */
+	private void schedulePacking(final CacheEntry entry) {
+		mBackgroundExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				packEntry(entry);
+			}
+		});
+	}
+
+	private void packEntry(CacheEntry entry) {
+		if (mIndex.get(entry.key) != entry) {
+			return;
+		}
+		final byte[] data;
+		try {
+			data = readFully(new File(entry.file));
+		} catch (final IOException e) {
+			return;
+		}
+		final PackFileStore.Location location;
+		try {
+			location = mPackStore.append(data, data.length);
+		} catch (final IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		synchronized (mLock) {
+			if (mIndex.get(entry.key) != entry) {
+				mPackStore.release(location);
+				return;
+			}
+			indexEntry(entry.key, new CacheEntry(entry.key, entry.file, location, location.length, entry.accessOrder));
+			journal(packedRecord(location), entry.key);
+		}
+		new File(entry.file).delete();
+	}
+
+	private static byte[] readFully(File file) throws IOException {
+		final RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			final byte[] data = new byte[(int) in.length()];
+			in.readFully(data);
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void scheduleCompaction() {
+		if (mCompactionScheduled.compareAndSet(false, true)) {
+			mBackgroundExecutor.execute(mCompactionTask);
+		}
+	}
+
+	/**
+	 * Copies the live entries of mostly dead segments to the active segment
+	 * and deletes the old segments.
+	 */
+	private void compactPackSegments() {
+		for (Integer segment : mPackStore.getSegmentsToCompact()) {
+			for (CacheEntry entry : mIndex.values()) {
+				if (entry.location == null || entry.location.segment != segment) {
+					continue;
+				}
+				final byte[] data = mPackStore.read(entry.location);
+				if (data == null) {
+					continue;
+				}
+				final PackFileStore.Location location;
 				try {
-					final String file = createFilePath(mCacheDir, key);
-					put(key, file);
-					flushCache();
-				} catch (final Exception e) {
+					location = mPackStore.append(data, data.length);
+				} catch (final IOException e) {
 					e.printStackTrace();
+					return;
+				}
+				synchronized (mLock) {
+					if (mIndex.get(entry.key) != entry) {
+						mPackStore.release(location);
+						continue;
+					}
+					mIndex.put(entry.key, new CacheEntry(entry.key, entry.file, location, location.length, entry.accessOrder));
+					journal(packedRecord(location), entry.key, false);
 				}
 			}
+			synchronized (mLock) {
+				flushJournal();
+				mPackStore.deleteSegment(segment);
+			}
 		}
 	}
 
-	private void put(String key, String file) {
-		mLinkedHashMap.put(key, file);
-		cacheSize = mLinkedHashMap.size();
-		cacheByteSize += new File(file).length();
+	/**
+	 * Starts writing the file for the given key. The caller must write the
+	 * returned file and then call {@link #commit(String)} or
+	 * {@link #abort(String)}.
+	 * 
+	 * @param key
+	 * @return The path of the file to write
+	 */
+	public String edit(String key) {
+		final String file = createFilePath(mDirectory, key);
+		new File(file).getParentFile().mkdirs();
+		synchronized (mLock) {
+			journal(DIRTY, key);
+		}
+		return file;
+	}
+
+	/**
+	 * Registers the file written after {@link #edit(String)} with its final
+	 * size.
+	 * 
+	 * @param key
+	 */
+	public void commit(String key) {
+		synchronized (mLock) {
+			final String file = createFilePath(mDirectory, key);
+			if (new File(file).exists()) {
+				put(key, file);
+				scheduleTrim();
+			} else {
+				unindexEntry(key);
+				new File(file + META_FILE_SUFFIX).delete();
+				journal(REMOVE, key);
+			}
+		}
 	}
 
 	/**
-	 * Flush the cache, removing oldest entries if the total size is over the
-	 * specified cache size. Note that this isn't keeping track of stale files
-	 * in the cache directory that aren't in the HashMap. If the images and keys
-	 * in the disk cache change often then they probably won't ever be removed.
+	 * Discards a write started with {@link #edit(String)}, the writer deletes
+	 * its own temp file. An entry committed by another writer meanwhile, or
+	 * the entry that was to be replaced, stays.
+	 * 
+	 * @param key
 	 */
-	private void flushCache() {
-		Entry<String, String> eldestEntry;
-		File eldestFile;
-		long eldestFileSize;
-		int count = 0;
+	public void abort(String key) {
+		synchronized (mLock) {
+			final CacheEntry entry = mIndex.get(key);
+			if (entry == null) {
+				journal(REMOVE, key);
+			} else if (entry.location != null) {
+				journal(packedRecord(entry.location), key);
+			} else {
+				journal(CLEAN + ' ' + entry.size, key);
+			}
+		}
+	}
 
-		while (count < MAX_REMOVALS && (cacheSize > maxCacheItemSize || cacheByteSize > maxCacheByteSize)) {
-			eldestEntry = mLinkedHashMap.entrySet().iterator().next();
-			eldestFile = new File(eldestEntry.getValue());
-			eldestFileSize = eldestFile.length();
-			mLinkedHashMap.remove(eldestEntry.getKey());
-			eldestFile.delete();
-			cacheSize = mLinkedHashMap.size();
-			cacheByteSize -= eldestFileSize;
-			count++;
+	/**
+	 * Creates a temp file next to the file of a key for one writer to write
+	 * the entry into before renaming it into place, see
+	 * {@link #edit(String)}.
+	 * 
+	 * @param key
+	 * @return The temp file, unique to the caller
+	 * @throws IOException
+	 */
+	public File createTempFile(String key) throws IOException {
+		final File file = new File(createFilePath(mDirectory, key));
+		final File dir = file.getParentFile();
+		dir.mkdirs();
+		return File.createTempFile(file.getName() + '.', TMP_FILE_SUFFIX, dir);
+	}
+
+	/**
+	 * Deletes the temp files writers of a file left behind.
+	 */
+	private static void deleteTempFiles(String file) {
+		final File entryFile = new File(file);
+		final String prefix = entryFile.getName() + '.';
+		final File[] files = entryFile.getParentFile().listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File tmpFile : files) {
+			final String name = tmpFile.getName();
+			if (name.startsWith(prefix) && name.endsWith(TMP_FILE_SUFFIX)) {
+				tmpFile.delete();
+			}
+		}
+	}
+
+	private static void deleteEntryFiles(String file) {
+		new File(file).delete();
+		new File(file + META_FILE_SUFFIX).delete();
+	}
+
+	private boolean isOverLimit(float fraction) {
+		return (maxCacheItemSize > 0 && cacheSize > maxCacheItemSize * fraction) || cacheByteSize > maxCacheByteSize * fraction;
+	}
+
+	/**
+	 * Starts a background trim if the cache is over its limits. Must be
+	 * called holding the index lock.
+	 */
+	private void scheduleTrim() {
+		if (isOverLimit(1f) && mTrimScheduled.compareAndSet(false, true)) {
+			mBackgroundExecutor.execute(mTrimTask);
 		}
 	}
 
+	/**
+	 * Removes the least recently used entries until the cache is under the
+	 * low-water mark of its limits. Victims are picked from a snapshot sorted
+	 * by access stamp, an entry used after the trim started is skipped.
+	 * Entries are removed in small batches, releasing the lock in between so
+	 * writers are not held up for long.
+	 */
+	private void trimToLowWater() {
+		boolean evicted = true;
+		while (evicted && needsTrim()) {
+			evicted = false;
+			final long trimStart = mClock.get();
+			final LruCandidate[] candidates = evictionOrder(snapshotByAccessOrder(), mLastTrimStart);
+			mLastTrimStart = trimStart;
+			int i = 0;
+			while (i < candidates.length) {
+				synchronized (mLock) {
+					final int batchEnd = Math.min(i + TRIM_BATCH_SIZE, candidates.length);
+					for (; i < batchEnd && isOverLimit(LOW_WATER_FRACTION); i++) {
+						final CacheEntry entry = candidates[i].entry;
+						if (entry.accessOrder > trimStart || mIndex.get(entry.key) != entry) {
+							continue;
+						}
+						unindexEntry(entry.key);
+						deleteEntryFiles(entry.file);
+						journal(REMOVE, entry.key, false);
+						evicted = true;
+					}
+					flushJournal();
+					if (!isOverLimit(LOW_WATER_FRACTION)) {
+						return;
+					}
+				}
+				Thread.yield();
+			}
+		}
+	}
+
+	private boolean needsTrim() {
+		synchronized (mLock) {
+			return isOverLimit(LOW_WATER_FRACTION);
+		}
+	}
+
+	/**
+	 * Orders a snapshot for eviction: derived entries first, then least
+	 * recently used. With the admission filter enabled, entries used since
+	 * the previous trim only stay if they have been used more often than the
+	 * least recently used entry they would push out, otherwise they are
+	 * evicted in its place. This keeps one-off images from flushing out
+	 * popular ones.
+	 * 
+	 * @param candidates
+	 *            The entries from least to most recently used
+	 * @param windowStart
+	 *            The clock at the start of the previous trim
+	 * @return The entries in eviction order
+	 */
+	private LruCandidate[] evictionOrder(LruCandidate[] candidates, long windowStart) {
+		final FrequencySketch sketch = mSketch;
+		if (sketch == null) {
+			Arrays.sort(candidates, EVICTION_ORDER);
+			return candidates;
+		}
+		final ArrayList<LruCandidate> derived = new ArrayList<LruCandidate>();
+		final ArrayList<LruCandidate> main = new ArrayList<LruCandidate>();
+		final ArrayList<LruCandidate> window = new ArrayList<LruCandidate>();
+		for (int i = 0; i < candidates.length; i++) {
+			final LruCandidate candidate = candidates[i];
+			candidate.frequency = sketch.frequency(candidate.entry.key);
+			if (candidate.entry.derived) {
+				derived.add(candidate);
+			} else if (candidate.accessOrder > windowStart) {
+				window.add(candidate);
+			} else {
+				main.add(candidate);
+			}
+		}
+		// Coldest newcomers first, the sort is stable so ties stay in LRU order
+		Collections.sort(window, BY_FREQUENCY);
+
+		final LruCandidate[] ordered = new LruCandidate[candidates.length];
+		int n = 0;
+		for (int i = 0; i < derived.size(); i++) {
+			ordered[n++] = derived.get(i);
+		}
+		int m = 0;
+		int w = 0;
+		while (m < main.size() || w < window.size()) {
+			if (w < window.size() && (m == main.size() || window.get(w).frequency <= main.get(m).frequency)) {
+				ordered[n++] = window.get(w++);
+			} else {
+				ordered[n++] = main.get(m++);
+			}
+		}
+		return ordered;
+	}
+
+	private static final Comparator<LruCandidate> BY_FREQUENCY = new Comparator<LruCandidate>() {
+		@Override
+		public int compare(LruCandidate lhs, LruCandidate rhs) {
+			return lhs.frequency - rhs.frequency;
+		}
+	};
+
+	/**
+	 * @return The entries from least to most recently used
+	 */
+	private LruCandidate[] snapshotByAccessOrder() {
+		final ArrayList<LruCandidate> candidates = new ArrayList<LruCandidate>(mIndex.size());
+		for (CacheEntry entry : mIndex.values()) {
+			candidates.add(new LruCandidate(entry));
+		}
+		final LruCandidate[] sorted = candidates.toArray(new LruCandidate[candidates.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Stamps an entry as most recently used and buffers a READ record for
+	 * the journal, without taking the lock.
+	 */
+	private void recordRead(CacheEntry entry) {
+		entry.accessOrder = mClock.incrementAndGet();
+		final FrequencySketch sketch = mSketch;
+		if (sketch != null) {
+			sketch.increment(entry.key);
+		}
+		mReadBuffer.offer(entry.key);
+		if (mReadBufferSize.incrementAndGet() >= READ_BUFFER_DRAIN_THRESHOLD && mDrainScheduled.compareAndSet(false, true)) {
+			mBackgroundExecutor.execute(mDrainTask);
+		}
+	}
+
+	private void drainReadBuffer() {
+		synchronized (mLock) {
+			String key;
+			while ((key = mReadBuffer.poll()) != null) {
+				mReadBufferSize.decrementAndGet();
+				if (mIndex.containsKey(key)) {
+					journal(READ, key, false);
+				}
+			}
+			flushJournal();
+		}
+	}
+
+	private void flushJournal() {
+		if (mJournalWriter != null) {
+			try {
+				mJournalWriter.flush();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Sets the maximum number of entries, 0 means the cache is only limited
+	 * by its byte size.
+	 * 
+	 * @param maxItemCount
+	 */
+	public void setMaxItemCount(int maxItemCount) {
+		synchronized (mLock) {
+			maxCacheItemSize = maxItemCount;
+			scheduleTrim();
+		}
+	}
+
+	/**
+	 * Enables or disables frequency-aware admission. When enabled, a newly
+	 * added entry that has been used less often than the least recently used
+	 * entry is evicted in its place. The entry is still added, a caller may
+	 * read it right after committing. Counts start from scratch when the
+	 * filter is enabled.
+	 * 
+	 * @param enabled
+	 */
+	public void setAdmissionFilterEnabled(boolean enabled) {
+		synchronized (mLock) {
+			if (!enabled) {
+				mSketch = null;
+			} else if (mSketch == null) {
+				final long averageSize = cacheSize > 0 ? Math.max(cacheByteSize / cacheSize, MIN_ENTRY_SIZE) : TYPICAL_ENTRY_SIZE;
+				long expectedKeys = maxCacheByteSize / averageSize;
+				if (maxCacheItemSize > 0) {
+					expectedKeys = Math.min(expectedKeys, maxCacheItemSize);
+				}
+				mSketch = new FrequencySketch((int) Math.min(expectedKeys, MAX_ADMISSION_FILTER_KEYS));
+			}
+		}
+	}
+
+	/**
+	 * @return The total size in bytes of the committed entries
+	 */
+	public long getByteSize() {
+		synchronized (mLock) {
+			return cacheByteSize;
+		}
+	}
+
+	/**
+	 * @return The number of committed entries
+	 */
+	public int getItemCount() {
+		synchronized (mLock) {
+			return cacheSize;
+		}
+	}
+
+	/**
+	 * @return The total size in bytes of the entries derived from other
+	 *         entries, included in {@link #getByteSize()}
+	 */
+	public long getDerivedByteSize() {
+		synchronized (mLock) {
+			return derivedCacheByteSize;
+		}
+	}
+
+	/**
+	 * @return The number of entries derived from other entries, included in
+	 *         {@link #getItemCount()}
+	 */
+	public int getDerivedItemCount() {
+		synchronized (mLock) {
+			return derivedCacheSize;
+		}
+	}
+
+	/**
+	 * Looks up the entry of a key, falling back to the file system only for
+	 * caches written before the journal existed.
+	 */
+	private CacheEntry lookup(String key) {
+		final CacheEntry entry = mIndex.get(key);
+		if (entry != null || !mLegacyLookup) {
+			return entry;
+		}
+		synchronized (mLock) {
+			if (!mIndex.containsKey(key) && migrateLegacyFile(key)) {
+				// File found, add it to the index for future use
+				put(key, createFilePath(mDirectory, key));
+			}
+			return mIndex.get(key);
+		}
+	}
+
+	/**
+	 * Moves the file an older version wrote for this key to its current
+	 * location.
+	 * 
+	 * @return true if the file is now at {@link #createFilePath(String)}
+	 */
+	private boolean migrateLegacyFile(String key) {
+		final File legacyFile = new File(createLegacyFilePath(mDirectory, key));
+		if (!legacyFile.exists()) {
+			return false;
+		}
+		final File file = new File(createFilePath(mDirectory, key));
+		file.getParentFile().mkdirs();
+		return legacyFile.renameTo(file);
+	}
+
 	/**
 	 * Get an image from the disk cache.
 	 * 
@@ -167,35 +1217,81 @@ public class DiskLruCache {
 	 * @return The bitmap or null if not found
 	 */
 	public Bitmap get(String key) {
-		synchronized (mLinkedHashMap) {
-			final String file = mLinkedHashMap.get(key);
-			if (file != null) {
-				return BitmapFactory.decodeFile(file);
-			} else {
-				final String existingFile = createFilePath(mCacheDir, key);
-				if (new File(existingFile).exists()) {
-					put(key, existingFile);
-					return BitmapFactory.decodeFile(existingFile);
-				}
+		final CacheEntry entry = lookup(key);
+		if (entry != null) {
+			if (entry.location != null) {
+				final byte[] data = getPackedData(key);
+				return data != null ? BitmapFactory.decodeByteArray(data, 0, data.length) : null;
 			}
-			return null;
+			recordRead(entry);
+			return BitmapFactory.decodeFile(entry.file);
 		}
+		return null;
 	}
 
+	/**
+	 * @param key
+	 * @return The path of the cache file, or an empty string if the key is
+	 *         not cached or is packed
+	 */
 	public String getCacheFile(String key) {
-		final String file = mLinkedHashMap.get(key);
-		if (file != null) {
-			return file;
-		} else {
-			final String existingFile = createFilePath(mCacheDir, key);
-			if (new File(existingFile).exists()) {
-				put(key, existingFile);
-				return existingFile;
-			}
+		final CacheEntry entry = lookup(key);
+		if (entry != null && entry.location == null) {
+			recordRead(entry);
+			return entry.file;
 		}
 		return "";
 	}
 
+	/**
+	 * Reads a packed entry.
+	 * 
+	 * @param key
+	 * @return The data, or null if the key is not cached or has its own file
+	 */
+	public byte[] getPackedData(String key) {
+		// Retry once in case the entry is moved by a compaction meanwhile
+		for (int attempt = 0; attempt < 2; attempt++) {
+			final CacheEntry entry = lookup(key);
+			if (entry == null || entry.location == null) {
+				return null;
+			}
+			final byte[] data = mPackStore.read(entry.location);
+			if (data != null) {
+				recordRead(entry);
+				return data;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the data of an entry, whether it is packed or has its own file.
+	 * 
+	 * @param key
+	 * @param maxSize
+	 *            Entries larger than this many bytes are not read
+	 * @return The data, or null if the key is not cached, is too large or
+	 *         can't be read
+	 */
+	public byte[] getData(String key, int maxSize) {
+		final CacheEntry entry = lookup(key);
+		if (entry == null || entry.size > maxSize) {
+			return null;
+		}
+		if (entry.location != null) {
+			return getPackedData(key);
+		}
+		try {
+			final byte[] data = readFully(new File(entry.file));
+			recordRead(entry);
+			return data;
+		} catch (final IOException e) {
+			// Packed or evicted meanwhile
+			return getPackedData(key);
+		}
+	}
+
 	/**
 	 * Checks if a specific key exist in the cache.
 	 * 
@@ -204,31 +1300,46 @@ public class DiskLruCache {
 	 * @return true if found, false otherwise
 	 */
 	public boolean containsKey(String key) {
-		// See if the key is in our HashMap
-		if (mLinkedHashMap.containsKey(key)) {
-			return true;
-		}
-
-		// Now check if there's an actual file that exists based on the key
-		final String existingFile = createFilePath(mCacheDir, key);
-		if (new File(existingFile).exists()) {
-			// File found, add it to the HashMap for future use
-			put(key, existingFile);
-			return true;
-		}
-		return false;
+		return lookup(key) != null;
 	}
 
 	public void deleteCache(String key) {
-		if (mLinkedHashMap.containsKey(key)) {
-			mLinkedHashMap.remove(key);
+		synchronized (mLock) {
+			unindexEntry(key);
+			deleteEntryFiles(createFilePath(mDirectory, key));
+			journal(REMOVE, key);
 		}
-		final String existingFile = createFilePath(mCacheDir, key);
-		File cacheFile = new File(existingFile);
-		if (cacheFile.exists()) {
-			long fileSize = cacheFile.length();
-			if (cacheFile.delete()) {
-				cacheByteSize -= fileSize;
+	}
+
+	/**
+	 * Creates the key of an entry derived from another entry.
+	 * 
+	 * @param tag
+	 *            Tells the entries derived from the same key apart, must not
+	 *            contain ':'
+	 * @param key
+	 *            The key of the source entry
+	 * @return The derived key
+	 */
+	public static String createDerivedKey(String tag, String key) {
+		return DERIVED_KEY_PREFIX + tag + ':' + key;
+	}
+
+	/**
+	 * Removes all entries derived from a key, for example once the source
+	 * entry has changed.
+	 * 
+	 * @param key
+	 *            The key of the source entry
+	 */
+	public void deleteDerived(String key) {
+		for (String derivedKey : mIndex.keySet()) {
+			if (derivedKey.startsWith(DERIVED_KEY_PREFIX)) {
+				final int tagEnd = derivedKey.indexOf(':', DERIVED_KEY_PREFIX.length());
+				if (tagEnd != -1 && derivedKey.regionMatches(tagEnd + 1, key, 0, key.length())
+						&& derivedKey.length() == tagEnd + 1 + key.length()) {
+					deleteCache(derivedKey);
+				}
 			}
 		}
 	}
@@ -237,12 +1348,26 @@ public class DiskLruCache {
 	 * Removes all disk cache entries from this instance cache dir
 	 */
 	public void clearCache() {
-		DiskLruCache.clearCache(mCacheDir);
+		synchronized (mLock) {
+			closeJournalWriter();
+			mPackStore.clear();
+			DiskLruCache.clearCache(mDirectory);
+			mIndex.clear();
+			mExpiries.clear();
+			resetSizes();
+			mLegacyLookup = false;
+			rebuildJournal();
+		}
 	}
 
+	/**
+	 * Called by a holder that drops its reference to this cache. Only the
+	 * journal is flushed: the instance is shared by every user of the
+	 * directory, so its index and files stay open for the others.
+	 */
 	public void clearLinkedHashMap() {
-		if (mLinkedHashMap != null) {
-			mLinkedHashMap.clear();
+		synchronized (mLock) {
+			flushJournal();
 		}
 	}
 
@@ -259,7 +1384,15 @@ public class DiskLruCache {
 	public static void clearCache(Context context, String uniqueName) {
 		File cacheDir = getDiskCacheDir(context, uniqueName);
 		if (cacheDir != null && cacheDir.exists()) {
-			clearCache(cacheDir);
+			final DiskLruCache openCache;
+			synchronized (sOpenCaches) {
+				openCache = sOpenCaches.get(cacheDir.getAbsolutePath());
+			}
+			if (openCache != null) {
+				openCache.clearCache();
+			} else {
+				clearCache(cacheDir);
+			}
 		}
 	}
 
@@ -275,9 +1408,42 @@ public class DiskLruCache {
 		if (cacheDir == null) {
 			return;
 		}
-		final File[] files = cacheDir.listFiles(cacheFileFilter);
-		for (int i = 0; i < files.length; i++) {
-			files[i].delete();
+		final File[] dirs = cacheDir.listFiles(fanOutDirFilter);
+		if (dirs != null) {
+			for (int i = 0; i < dirs.length; i++) {
+				final File[] subDirs = dirs[i].listFiles(fanOutDirFilter);
+				if (subDirs != null) {
+					for (int j = 0; j < subDirs.length; j++) {
+						deleteCacheFiles(subDirs[j]);
+					}
+				}
+			}
+		}
+		deleteCacheFiles(cacheDir);
+		final File[] segments = new File(cacheDir, PackFileStore.PACK_DIR).listFiles();
+		if (segments != null) {
+			for (int i = 0; i < segments.length; i++) {
+				segments[i].delete();
+			}
+		}
+		new File(cacheDir, JOURNAL_FILE).delete();
+		new File(cacheDir, JOURNAL_FILE_TMP).delete();
+	}
+
+	/**
+	 * Removes the files written by older versions directly into the cache
+	 * directory.
+	 */
+	private static void deleteLegacyFiles(File cacheDir) {
+		deleteCacheFiles(cacheDir);
+	}
+
+	private static void deleteCacheFiles(File dir) {
+		final File[] files = dir.listFiles(cacheFileFilter);
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
 		}
 	}
 
@@ -323,13 +1489,50 @@ public class DiskLruCache {
 			return "";
 		}
 		try {
-			return cacheDir.getAbsolutePath() + File.separator + CACHE_FILENAME_PREFIX + key.hashCode();
+			final String hash = hashKeyForDisk(key);
+			return cacheDir.getAbsolutePath() + File.separator + hash.charAt(0) + File.separator + hash.charAt(1) + File.separator
+					+ CACHE_FILENAME_PREFIX + hash;
 		} catch (final Exception e) {
 			e.printStackTrace();
 		}
 		return null;
 	}
 
+	/**
+	 * The flat, hashCode based path used before the cache files were spread
+	 * over sub-directories.
+	 */
+	private static String createLegacyFilePath(File cacheDir, String key) {
+		return cacheDir.getAbsolutePath() + File.separator + CACHE_FILENAME_PREFIX + key.hashCode();
+	}
+
+	/**
+	 * A hashing method that changes a string (like a URL) into a hex string
+	 * of its 128 bit MD5 digest, suitable as a file name.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public static String hashKeyForDisk(String key) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("MD5");
+			return toHex(digest.digest(key.getBytes("UTF-8")));
+		} catch (final NoSuchAlgorithmException e) {
+			return "0" + Integer.toHexString(key.hashCode());
+		} catch (final UnsupportedEncodingException e) {
+			return "0" + Integer.toHexString(key.hashCode());
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		final char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
 	/**
 	 * Create a constant cache file path using the current cache directory and
 	 * an image key.
@@ -338,7 +1541,42 @@ public class DiskLruCache {
 	 * @return
 	 */
 	public String createFilePath(String key) {
-		return createFilePath(mCacheDir, key);
+		return createFilePath(mDirectory, key);
+	}
+
+	/**
+	 * Returns the path of a small file kept next to the cache file of a key
+	 * for data about the entry, such as HTTP validators. The file belongs to
+	 * the caller, the cache only deletes it along with the entry. It is kept
+	 * when the entry is packed.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public String getMetadataFile(String key) {
+		return createFilePath(mDirectory, key) + META_FILE_SUFFIX;
+	}
+
+	/**
+	 * Remembers when an entry goes stale, usually read from its metadata
+	 * file. It is forgotten when the entry is removed.
+	 * 
+	 * @param key
+	 * @param expires
+	 *            The time in milliseconds
+	 */
+	public void setExpiry(String key, long expires) {
+		mExpiries.put(key, expires);
+	}
+
+	/**
+	 * @param key
+	 * @return The time in milliseconds an entry goes stale, or -1 if it was
+	 *         not set since the cache was opened
+	 */
+	public long getExpiry(String key) {
+		final Long expires = mExpiries.get(key);
+		return expires != null ? expires : -1;
 	}
 
 	/**
@@ -353,22 +1591,65 @@ public class DiskLruCache {
 		mCompressQuality = quality;
 	}
 
+	/**
+	 * A ByteArrayOutputStream that hands out its buffer, so encoded bitmaps
+	 * can be written with a single call and the buffer reused.
+	 */
+	private static final class EncodeBuffer extends ByteArrayOutputStream {
+		EncodeBuffer() {
+			super(Utils.IO_BUFFER_SIZE * 4);
+		}
+
+		/**
+		 * Writes the buffered bytes and empties the buffer, shrinking it if
+		 * it grew too large to keep around.
+		 */
+		void drainTo(OutputStream out) throws IOException {
+			out.write(buf, 0, count);
+			reset();
+			if (buf.length > MAX_REUSED_BUFFER_SIZE) {
+				buf = new byte[Utils.IO_BUFFER_SIZE * 4];
+			}
+		}
+	}
+
+	private static final ThreadLocal<EncodeBuffer> sEncodeBuffer = new ThreadLocal<EncodeBuffer>() {
+		@Override
+		protected EncodeBuffer initialValue() {
+			return new EncodeBuffer();
+		}
+	};
+
 	/**
 	 * Writes a bitmap to a file. Call
 	 * {@link DiskLruCache#setCompressParams(CompressFormat, int)} first to set
-	 * the target bitmap compression and format.
+	 * the target bitmap compression and format. The bitmap is encoded into a
+	 * buffer reused by the calling thread and then written in one go.
 	 * 
 	 * @param bitmap
 	 * @param file
 	 * @return
 	 */
 	private boolean writeBitmapToFile(Bitmap bitmap, String file) throws IOException, FileNotFoundException {
+		return writeBitmapToFile(bitmap, file, mCompressFormat, mCompressQuality);
+	}
+
+	private static boolean writeBitmapToFile(Bitmap bitmap, String file, CompressFormat compressFormat, int quality) throws IOException,
+			FileNotFoundException {
+		final EncodeBuffer buffer = sEncodeBuffer.get();
+		buffer.reset();
+		if (!bitmap.compress(compressFormat, quality, buffer)) {
+			buffer.reset();
+			return false;
+		}
 
 		OutputStream out = null;
 		try {
-			out = new BufferedOutputStream(new FileOutputStream(file), Utils.IO_BUFFER_SIZE);
-			return bitmap.compress(mCompressFormat, mCompressQuality, out);
+			out = new FileOutputStream(file);
+			buffer.drainTo(out);
+			return true;
 		} finally {
+			buffer.reset();
 			if (out != null) {
 				out.close();
 			}
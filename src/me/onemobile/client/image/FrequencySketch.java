@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.onemobile.client.image;
+
+/**
+ * A count-min sketch estimating how often keys have been used, with 4-bit
+ * counters packed sixteen to a long. Once the number of recorded uses reaches
+ * ten times the expected number of keys all counters are halved, so that old
+ * popularity fades out. Used as the admission filter of {@link DiskLruCache}.
+ */
+class FrequencySketch {
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int MAX_COUNT = 15;
+
+	private final long[] mTable;
+	private final int mCounterMask;
+	private final int mSampleSize;
+	private int mAdditions;
+
+	/**
+	 * @param expectedKeys
+	 *            The expected number of distinct keys in the cache
+	 */
+	FrequencySketch(int expectedKeys) {
+		final int keys = Math.max(expectedKeys, 16);
+		int tableSize = 1;
+		while (tableSize < keys) {
+			tableSize <<= 1;
+		}
+		mTable = new long[tableSize];
+		mCounterMask = tableSize * 16 - 1;
+		mSampleSize = keys * 10;
+	}
+
+	/**
+	 * Records a use of a key.
+	 */
+	synchronized void increment(String key) {
+		final int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int i = 0; i < SEEDS.length; i++) {
+			final int counter = indexOf(hash, i);
+			final int slot = counter >>> 4;
+			final int shift = (counter & 15) << 2;
+			if (((mTable[slot] >>> shift) & MAX_COUNT) < MAX_COUNT) {
+				mTable[slot] += 1L << shift;
+				added = true;
+			}
+		}
+		if (added && ++mAdditions >= mSampleSize) {
+			reset();
+		}
+	}
+
+	/**
+	 * @return The estimated number of recent uses of a key, at most 15
+	 */
+	synchronized int frequency(String key) {
+		final int hash = spread(key.hashCode());
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < SEEDS.length; i++) {
+			final int counter = indexOf(hash, i);
+			frequency = Math.min(frequency, (int) ((mTable[counter >>> 4] >>> ((counter & 15) << 2)) & MAX_COUNT));
+		}
+		return frequency;
+	}
+
+	/**
+	 * Halves all counters.
+	 */
+	private void reset() {
+		for (int i = 0; i < mTable.length; i++) {
+			mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+		}
+		mAdditions /= 2;
+	}
+
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return (int) h & mCounterMask;
+	}
+
+	private static int spread(int hash) {
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		return (hash >>> 16) ^ hash;
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.onemobile.client.image;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * The HTTP validators and expiry time of a downloaded image, stored in the
+ * metadata file of its disk cache entry. A fresh entry is used without
+ * asking the server, a stale one is revalidated with a conditional request.
+ */
+class HttpCacheMetadata {
+	/**
+	 * Freshness lifetime of responses without Cache-Control max-age or
+	 * Expires, and the upper bound of the Last-Modified heuristic.
+	 */
+	static final long DEFAULT_MAX_AGE = 1000L * 60 * 60 * 24; // 1 day
+
+	private static final String KEY_ETAG = "etag";
+	private static final String KEY_LAST_MODIFIED = "last-modified";
+	private static final String KEY_EXPIRES = "expires";
+
+	String etag;
+	String lastModified;
+	long expires;
+
+	/**
+	 * Builds the metadata of a response.
+	 * 
+	 * @param connection
+	 *            A connection whose response headers have been received
+	 * @param requestTime
+	 *            When the request was sent
+	 * @return
+	 */
+	static HttpCacheMetadata fromResponse(HttpURLConnection connection, long requestTime) {
+		final HttpCacheMetadata metadata = new HttpCacheMetadata();
+		metadata.etag = connection.getHeaderField("ETag");
+		metadata.lastModified = connection.getHeaderField("Last-Modified");
+		metadata.expires = computeExpires(connection.getHeaderField("Cache-Control"), connection.getDate(), connection.getExpiration(),
+				connection.getLastModified(), requestTime);
+		return metadata;
+	}
+
+	/**
+	 * Computes when a response goes stale, following Cache-Control max-age,
+	 * then Expires relative to the server date, then a tenth of the age of
+	 * Last-Modified capped at {@link #DEFAULT_MAX_AGE}. no-cache and no-store
+	 * make the response stale right away, the image is still kept on disk
+	 * since it is decoded from there.
+	 * 
+	 * @param cacheControl
+	 *            The Cache-Control header, or null
+	 * @param date
+	 *            The Date header in milliseconds, or 0
+	 * @param expiration
+	 *            The Expires header in milliseconds, or 0
+	 * @param lastModified
+	 *            The Last-Modified header in milliseconds, or 0
+	 * @param now
+	 * @return The time the response goes stale in milliseconds
+	 */
+	static long computeExpires(String cacheControl, long date, long expiration, long lastModified, long now) {
+		if (cacheControl != null) {
+			final String[] directives = cacheControl.toLowerCase(Locale.US).split(",");
+			for (int i = 0; i < directives.length; i++) {
+				final String directive = directives[i].trim();
+				if (directive.equals("no-cache") || directive.equals("no-store")) {
+					return now;
+				}
+				if (directive.startsWith("max-age=")) {
+					try {
+						return now + Long.parseLong(directive.substring("max-age=".length()).trim()) * 1000;
+					} catch (final NumberFormatException e) {
+						// Fall back to the other headers
+					}
+				}
+			}
+		}
+		// Relative to the server clock so that a skewed device clock does not
+		// matter
+		final long serverNow = date > 0 ? date : now;
+		if (expiration > 0) {
+			return now + Math.max(0, expiration - serverNow);
+		}
+		if (lastModified > 0 && lastModified < serverNow) {
+			return now + Math.min((serverNow - lastModified) / 10, DEFAULT_MAX_AGE);
+		}
+		return now + DEFAULT_MAX_AGE;
+	}
+
+	boolean hasValidators() {
+		return etag != null || lastModified != null;
+	}
+
+	/**
+	 * Makes a request conditional on the cached image having changed.
+	 * 
+	 * @param connection
+	 *            A connection that is not connected yet
+	 */
+	void addConditionalHeaders(HttpURLConnection connection) {
+		if (etag != null) {
+			connection.setRequestProperty("If-None-Match", etag);
+		}
+		if (lastModified != null) {
+			connection.setRequestProperty("If-Modified-Since", lastModified);
+		}
+	}
+
+	/**
+	 * Refreshes the metadata from a 304 response, which may leave out the
+	 * validators.
+	 * 
+	 * @param connection
+	 * @param requestTime
+	 *            When the request was sent
+	 */
+	void update(HttpURLConnection connection, long requestTime) {
+		final HttpCacheMetadata fresh = fromResponse(connection, requestTime);
+		if (fresh.etag != null) {
+			etag = fresh.etag;
+		}
+		if (fresh.lastModified != null) {
+			lastModified = fresh.lastModified;
+		}
+		expires = fresh.expires;
+	}
+
+	/**
+	 * Reads the metadata of a cache entry.
+	 * 
+	 * @param file
+	 * @return The metadata, or null if the entry has none
+	 */
+	static HttpCacheMetadata read(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		final Properties properties = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			properties.load(in);
+			final HttpCacheMetadata metadata = new HttpCacheMetadata();
+			metadata.etag = properties.getProperty(KEY_ETAG);
+			metadata.lastModified = properties.getProperty(KEY_LAST_MODIFIED);
+			metadata.expires = Long.parseLong(properties.getProperty(KEY_EXPIRES, "0"));
+			return metadata;
+		} catch (final IOException e) {
+			e.printStackTrace();
+		} catch (final NumberFormatException e) {
+			e.printStackTrace();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the metadata of a cache entry.
+	 * 
+	 * @param file
+	 */
+	void write(File file) {
+		final Properties properties = new Properties();
+		if (etag != null) {
+			properties.setProperty(KEY_ETAG, etag);
+		}
+		if (lastModified != null) {
+			properties.setProperty(KEY_LAST_MODIFIED, lastModified);
+		}
+		properties.setProperty(KEY_EXPIRES, String.valueOf(expires));
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(file);
+			properties.store(out, null);
+		} catch (final IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -17,10 +17,28 @@
 package me.onemobile.client.image;
 
 import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.util.LruCache;
 
@@ -37,6 +55,47 @@ public class ImageCache {
 	// Default disk cache size
 	public static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
 
+	// Default maximum number of disk cache entries, 0 for no limit
+	public static final int DEFAULT_DISK_CACHE_MAX_ITEMS = 0;
+
+	// Default size up to which images are packed into shared files, 0 to
+	// keep every image in its own file
+	public static final int DEFAULT_DISK_CACHE_PACK_MAX_SIZE = 0;
+
+	// Keep rarely used images from pushing popular ones out of the disk cache
+	public static final boolean DEFAULT_DISK_CACHE_ADMISSION_FILTER = false;
+
+	// Default size of the pool of evicted bitmaps reused by decodes, 0 to
+	// disable reuse
+	public static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 1024 * 2; // 2MB
+
+	// Default size of the memory cache of encoded images, 0 to disable it
+	public static final int DEFAULT_ENCODED_CACHE_SIZE = 0;
+
+	// Evict decoded bitmaps least recently used first by default
+	private static final StripedLruCache.EvictionPolicy DEFAULT_MEM_CACHE_EVICTION_POLICY = StripedLruCache.EvictionPolicy.LRU;
+
+	// Share of the encoded cache a single image may take
+	private static final int ENCODED_CACHE_MAX_ENTRY_FRACTION = 8;
+
+	// Trim the memory caches when the system runs low on memory
+	private static final boolean DEFAULT_TRIM_ON_MEMORY_PRESSURE = true;
+
+	// Default time the memory caches stay capped after a trim
+	public static final long DEFAULT_MEMORY_TRIM_RECOVERY_DELAY = 1000 * 30; // 30s
+
+	/**
+	 * The live caches, trimmed together when a decode runs out of memory.
+	 */
+	private static final WeakHashMap<ImageCache, Boolean> sInstances = new WeakHashMap<ImageCache, Boolean>();
+
+	/** The cache of {@link #getInstance(Context)}, reused while it is alive. */
+	private static WeakReference<ImageCache> sDefaultInstance;
+
+	// File in the disk cache directory with the bounds of the cached images
+	private static final String DIMENSION_INDEX_FILE = "dimensions";
+	private static final int MAX_DIMENSION_INDEX_ENTRIES = 8192;
+
 	// Compression settings when writing images to disk cache
 	private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.PNG;
 	private static final int DEFAULT_COMPRESS_QUALITY = 100;
@@ -46,8 +105,113 @@ public class ImageCache {
 	private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
 	private static final boolean DEFAULT_CLEAR_DISK_CACHE_ON_START = false;
 
+	// Maximum number of disk cache writes waiting for the I/O thread
+	private static final int DISK_WRITE_QUEUE_CAPACITY = 64;
+
+	/**
+	 * Disk cache writes of all ImageCache instances, run on one I/O thread so
+	 * that callers of addBitmapToCache never wait for the disk.
+	 */
+	private static final WriteBehindQueue sDiskWriteQueue = new WriteBehindQueue(DISK_WRITE_QUEUE_CAPACITY, "ImageCache disk writer");
+
+	// Smallest size bucket of downscaled variants
+	private static final int MIN_VARIANT_BUCKET = 32;
+
+	// Compression settings of downscaled variants without alpha
+	private static final int VARIANT_COMPRESS_QUALITY = 85;
+
+	// Number of variant keys remembered as not worth storing
+	private static final int MAX_SKIPPED_VARIANTS = 256;
+
+	// Separates the size bucket from the image identifier in memory cache keys
+	private static final char MEMORY_KEY_SIZE_SEPARATOR = '@';
+
 	private DiskLruCache mDiskCache;
-	private LruCache<String, Bitmap> mMemoryCache;
+	private CompressFormat mCompressFormat = DEFAULT_COMPRESS_FORMAT;
+
+	/** The bounds of the disk cache files, see {@link #getImageBounds}. */
+	private ImageDimensionIndex mDimensionIndex;
+	private StripedLruCache<String, Bitmap> mMemoryCache;
+	private BitmapPool mBitmapPool;
+
+	private Context mAppContext;
+	private Object mMemoryTrimCallbacks;
+	private long mMemoryTrimRecoveryDelay;
+
+	/**
+	 * The size the memory cache is kept under after a trim, until the
+	 * recovery delay has passed or {@link #resumeMemoryCache()} is called.
+	 */
+	private volatile int mMemoryLimit = Integer.MAX_VALUE;
+	private volatile long mLastTrimTime;
+	private volatile int mLastTrimLevel;
+
+	/**
+	 * The compressed data of recently decoded disk cache entries, by disk
+	 * cache key.
+	 */
+	private LruCache<String, byte[]> mEncodedCache;
+
+	/**
+	 * The size buckets in the memory cache by image, as bit masks with bit n
+	 * set for bucket 2^n and bit 0 for full size images.
+	 */
+	private final HashMap<String, Integer> mMemoryBuckets = new HashMap<String, Integer>();
+
+	/**
+	 * Bitmaps evicted from the memory cache that may still be alive, for
+	 * example because an ImageView shows them, by memory cache key.
+	 */
+	private final HashMap<String, EvictedReference> mEvictedBitmaps = new HashMap<String, EvictedReference>();
+	private final ReferenceQueue<Bitmap> mEvictedQueue = new ReferenceQueue<Bitmap>();
+	private final AtomicInteger mEvictedHitCount = new AtomicInteger();
+
+	/**
+	 * The leases of displayed bitmaps, see {@link #acquire(Bitmap)}, and the
+	 * other uses of cached bitmaps. Only bitmaps that have been leased are
+	 * pooled, the owner of a bitmap that was never displayed is unknown.
+	 */
+	private final WeakHashMap<Bitmap, Lease> mLeases = new WeakHashMap<Bitmap, Lease>();
+
+	private static final class Lease {
+		int count;
+		// Queued disk writes still to encode the bitmap
+		int pins;
+		// Leased at least once
+		boolean displayed;
+		// No longer in the memory cache
+		boolean evicted;
+		// Handed to code that does not release it
+		boolean escaped;
+
+		boolean isPoolable() {
+			return count == 0 && pins == 0 && displayed && evicted && !escaped;
+		}
+	}
+
+	private static final class EvictedReference extends WeakReference<Bitmap> {
+		final String key;
+
+		EvictedReference(String key, Bitmap bitmap, ReferenceQueue<Bitmap> queue) {
+			super(bitmap, queue);
+			this.key = key;
+		}
+	}
+
+	private final AtomicInteger mVariantHitCount = new AtomicInteger();
+	private final AtomicInteger mOriginalHitCount = new AtomicInteger();
+
+	/**
+	 * Variant keys whose original is already about the size of the bucket.
+	 */
+	private final Set<String> mSkippedVariants = Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_SKIPPED_VARIANTS;
+		}
+	}));
 
 	/**
 	 * Initial cache file path
@@ -90,13 +254,19 @@ public class ImageCache {
 		init(context, new ImageCacheParams(uniqueName));
 	}
 
-	public static ImageCache getInstance(Context context) {
+	public static synchronized ImageCache getInstance(Context context) {
+		final ImageCache instance = sDefaultInstance != null ? sDefaultInstance.get() : null;
+		if (instance != null) {
+			return instance;
+		}
 		int fitSize = Utils.getMemCacheSize(context);
 		ImageCacheParams cacheParams = new ImageCacheParams(CACHE_DIR_IMAGES);
 		if (fitSize > 0) {
 			cacheParams.memCacheSize = fitSize;
 		}
-		return new ImageCache(context, cacheParams);
+		final ImageCache imageCache = new ImageCache(context, cacheParams);
+		sDefaultInstance = new WeakReference<ImageCache>(imageCache);
+		return imageCache;
 	}
 
 	public static ImageCache getInstance(FragmentActivity activity) {
@@ -194,15 +364,55 @@ public class ImageCache {
 			mDiskCache = DiskLruCache.openCache(context, diskCacheDir, cacheParams.diskCacheSize);
 			if (mDiskCache != null) {
 				mDiskCache.setCompressParams(cacheParams.compressFormat, cacheParams.compressQuality);
+				mDiskCache.setMaxItemCount(cacheParams.diskCacheMaxItems);
+				mDiskCache.setPackMaxSize(cacheParams.diskCachePackMaxSize);
+				mDiskCache.setAdmissionFilterEnabled(cacheParams.diskCacheAdmissionFilter);
 				if (cacheParams.clearDiskCacheOnStart) {
 					mDiskCache.clearCache();
 				}
+				mCompressFormat = cacheParams.compressFormat;
+				mDimensionIndex = ImageDimensionIndex.open(new File(diskCacheDir, DIMENSION_INDEX_FILE), MAX_DIMENSION_INDEX_ENTRIES);
+				if (cacheParams.clearDiskCacheOnStart) {
+					mDimensionIndex.clear();
+				}
 			}
 		}
 
+		mAppContext = context.getApplicationContext();
+		mMemoryTrimRecoveryDelay = cacheParams.memoryTrimRecoveryDelay;
+		if (cacheParams.trimOnMemoryPressure) {
+			registerMemoryTrimCallbacks();
+		}
+		synchronized (sInstances) {
+			sInstances.put(this, Boolean.TRUE);
+		}
+
+		// Set up the pool before the memory cache feeding it
+		if (cacheParams.bitmapPoolSize > 0 && BitmapPool.isSupported()) {
+			mBitmapPool = new BitmapPool(cacheParams.bitmapPoolSize);
+			mBitmapPool.setOnReuseListener(new BitmapPool.OnReuseListener() {
+				@Override
+				public void onReuse(Bitmap bitmap) {
+					// About to be overwritten, it must not be served again
+					removeEvicted(bitmap);
+				}
+			});
+		}
+
+		// Set up the encoded memory cache
+		if (cacheParams.encodedCacheSize > 0) {
+			mEncodedCache = new LruCache<String, byte[]>(cacheParams.encodedCacheSize) {
+				@Override
+				protected int sizeOf(String key, byte[] data) {
+					return data.length;
+				}
+			};
+		}
+
 		// Set up memory cache
 		if (cacheParams.memoryCacheEnabled) {
-			mMemoryCache = new LruCache<String, Bitmap>(cacheParams.memCacheSize) {
+			mMemoryCache = new StripedLruCache<String, Bitmap>(cacheParams.memCacheSize, cacheParams.memCacheConcurrencyLevel,
+					cacheParams.memCacheEvictionPolicy) {
 				/**
 				 * Measure item size in bytes rather than units which is more
 				 * practical for a bitmap cache
@@ -211,43 +421,891 @@ public class ImageCache {
 				protected int sizeOf(String key, Bitmap bitmap) {
 					return Utils.getBitmapSize(bitmap);
 				}
+
+				@Override
+				protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+					if (newValue == null) {
+						removeMemoryBucket(key);
+					}
+					if (evicted) {
+						addEvicted(key, oldValue);
+					}
+					// A replaced bitmap may still be on its way to whoever
+					// loaded it, it is left to the GC
+					if (newValue == null) {
+						onRemovedFromMemCache(oldValue);
+					}
+				}
 			};
 		}
 	}
 
-	public void addBitmapToCache(String data, Bitmap bitmap) {
+	/**
+	 * Adds a full size bitmap to the caches, see
+	 * {@link #addBitmapToCache(String, int, int, Bitmap)}.
+	 * 
+	 * @param data
+	 *            Unique identifier for the bitmap
+	 * @param bitmap
+	 */
+	public void addBitmapToCache(final String data, final Bitmap bitmap) {
+		addBitmapToCache(data, 0, 0, bitmap);
+	}
+
+	/**
+	 * Adds a bitmap decoded for a requested size to the memory cache right
+	 * away and queues adding it to the disk cache on the I/O thread, see
+	 * {@link #flush()}. Only a full size bitmap is stored under the key of
+	 * the original, one decoded for a size is stored as the variant of its
+	 * size bucket if it is large enough for the bucket.
+	 * 
+	 * @param data
+	 *            Unique identifier for the bitmap
+	 * @param reqWidth
+	 *            The width the bitmap was decoded for, 0 for full size
+	 * @param reqHeight
+	 *            The height the bitmap was decoded for, 0 for full size
+	 * @param bitmap
+	 */
+	public void addBitmapToCache(final String data, int reqWidth, int reqHeight, final Bitmap bitmap) {
+		addBitmapToCache(data, reqWidth, reqHeight, bitmap, 0);
+	}
+
+	/**
+	 * Adds a bitmap like {@link #addBitmapToCache(String, int, int, Bitmap)},
+	 * with the time it took to load. The memory cache keeps bitmaps that are
+	 * slow to load longer with
+	 * {@link StripedLruCache.EvictionPolicy#GREEDY_DUAL_SIZE}.
+	 * 
+	 * @param data
+	 *            Unique identifier for the bitmap
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param bitmap
+	 * @param loadTime
+	 *            How long it took to load the bitmap in milliseconds, 0 if
+	 *            unknown
+	 */
+	public void addBitmapToCache(final String data, int reqWidth, int reqHeight, final Bitmap bitmap, long loadTime) {
 		if (data == null || bitmap == null) {
 			return;
 		}
 
-		synchronized (this) {
-			// Add to memory cache
-			if (mMemoryCache != null && mMemoryCache.get(data) == null) {
-				mMemoryCache.put(data, bitmap);
+		// Add to memory cache, StripedLruCache does its own locking
+		addBitmapToMemCache(data, getVariantBucket(reqWidth, reqHeight), bitmap, loadTime);
+
+		// Add to disk cache, a sampled down bitmap must not stand in for the
+		// original of larger requests
+		final DiskLruCache diskCache = mDiskCache;
+		final int bucket = getVariantBucket(reqWidth, reqHeight);
+		final String diskKey;
+		if (bucket == 0) {
+			diskKey = data;
+		} else if (Math.min(bitmap.getWidth(), bitmap.getHeight()) >= bucket) {
+			diskKey = getVariantKey(data, reqWidth, reqHeight);
+		} else {
+			diskKey = null;
+		}
+		if (diskCache != null && diskKey != null) {
+			// Not reused for decoding before it is encoded. A write replaced
+			// by a later one for the same file never unpins its bitmap, it
+			// is then left to the GC.
+			pin(bitmap);
+			// Writes for the same file are coalesced
+			final boolean queued = sDiskWriteQueue.enqueue(diskCache.createFilePath(diskKey), new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (diskCache.containsKey(diskKey)) {
+							return;
+						}
+						if (bucket == 0) {
+							diskCache.put(diskKey, bitmap);
+							recordImageBounds(diskCache.createFilePath(diskKey), bitmap, mCompressFormat);
+						} else {
+							putVariant(diskCache, diskKey, bitmap);
+						}
+					} finally {
+						unpin(bitmap);
+					}
+				}
+			});
+			if (!queued) {
+				unpin(bitmap);
+			}
+		}
+	}
+
+	/**
+	 * Returns the disk cache key of the downscaled variant of an image for a
+	 * requested size. Sizes are rounded up to a power of two bucket so that
+	 * close sizes share one variant.
+	 * 
+	 * @param data
+	 *            Unique identifier of the original image
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @return The variant key, or null if no size was requested
+	 */
+	public static String getVariantKey(String data, int reqWidth, int reqHeight) {
+		final int bucket = getVariantBucket(reqWidth, reqHeight);
+		if (bucket <= 0) {
+			return null;
+		}
+		return DiskLruCache.createDerivedKey(String.valueOf(bucket), data);
+	}
+
+	private static int getVariantBucket(int reqWidth, int reqHeight) {
+		final int size = Math.max(reqWidth, reqHeight);
+		if (size <= 0) {
+			return 0;
+		}
+		int bucket = MIN_VARIANT_BUCKET;
+		// Capped so that the shift can't overflow
+		while (bucket < size && bucket < (1 << 30)) {
+			bucket <<= 1;
+		}
+		return bucket;
+	}
+
+	/**
+	 * Queues storing a downscaled variant of a disk cached image, so that
+	 * later loads at about the same size decode a small file. Nothing is
+	 * stored if the original is not much larger than the variant would be.
+	 * Variants are evicted before originals.
+	 * 
+	 * @param data
+	 *            Unique identifier of the original image
+	 * @param reqWidth
+	 * @param reqHeight
+	 */
+	public void addVariantToCache(final String data, int reqWidth, int reqHeight) {
+		final DiskLruCache diskCache = mDiskCache;
+		final String variantKey = getVariantKey(data, reqWidth, reqHeight);
+		if (diskCache == null || variantKey == null || mSkippedVariants.contains(variantKey) || diskCache.containsKey(variantKey)) {
+			return;
+		}
+		final int bucket = getVariantBucket(reqWidth, reqHeight);
+		sDiskWriteQueue.enqueue(diskCache.createFilePath(variantKey), new Runnable() {
+			@Override
+			public void run() {
+				if (diskCache.containsKey(variantKey)) {
+					return;
+				}
+				final Bitmap variant = decodeVariant(diskCache, data, bucket);
+				if (variant == null) {
+					mSkippedVariants.add(variantKey);
+					return;
+				}
+				putVariant(diskCache, variantKey, variant);
+				variant.recycle();
+			}
+		});
+	}
+
+	/**
+	 * Stores a downscaled variant, as JPEG unless it has transparency.
+	 */
+	private void putVariant(DiskLruCache diskCache, String variantKey, Bitmap variant) {
+		final CompressFormat format = variant.hasAlpha() ? CompressFormat.PNG : CompressFormat.JPEG;
+		diskCache.put(variantKey, variant, format, format == CompressFormat.PNG ? DEFAULT_COMPRESS_QUALITY : VARIANT_COMPRESS_QUALITY);
+		recordImageBounds(diskCache.createFilePath(variantKey), variant, format);
+	}
+
+	/**
+	 * Decodes the original of a variant sampled down to the bucket size.
+	 * 
+	 * @return The variant, or null if the original is missing or would not be
+	 *         sampled down at least by half
+	 */
+	private static Bitmap decodeVariant(DiskLruCache diskCache, String data, int bucket) {
+		final String file = diskCache.getCacheFile(data);
+		final byte[] packed = file != null && file.length() > 0 ? null : diskCache.getPackedData(data);
+		if ((file == null || file.length() == 0) && packed == null) {
+			return null;
+		}
+		try {
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			if (packed == null) {
+				BitmapFactory.decodeFile(file, options);
+			} else {
+				BitmapFactory.decodeByteArray(packed, 0, packed.length, options);
 			}
+			// Not strict, the variant must not be smaller than the bucket
+			options.inSampleSize = ImageResizer.calculateInSampleSize(options, bucket, bucket, false);
+			if (options.inSampleSize < 2) {
+				return null;
+			}
+			options.inJustDecodeBounds = false;
+			if (packed == null) {
+				return BitmapFactory.decodeFile(file, options);
+			}
+			return BitmapFactory.decodeByteArray(packed, 0, packed.length, options);
+		} catch (OutOfMemoryError e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Counts a disk cache hit for the statistics.
+	 * 
+	 * @param variant
+	 *            true if a downscaled variant was hit, false for the original
+	 */
+	void recordDiskHit(boolean variant) {
+		if (variant) {
+			mVariantHitCount.incrementAndGet();
+		} else {
+			mOriginalHitCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return The current sizes and hit counts of the caches
+	 */
+	public CacheStats getCacheStats() {
+		final CacheStats stats = new CacheStats();
+		final StripedLruCache<String, Bitmap> memoryCache = mMemoryCache;
+		if (memoryCache != null) {
+			stats.memorySize = memoryCache.size();
+			stats.memoryMaxSize = memoryCache.maxSize();
+			stats.memoryHitCount = memoryCache.hitCount();
+			stats.memoryMissCount = memoryCache.missCount();
+		}
+		stats.memoryEvictedHitCount = mEvictedHitCount.get();
+		stats.memoryLimit = mMemoryLimit == Integer.MAX_VALUE ? stats.memoryMaxSize : mMemoryLimit;
+		stats.lastTrimLevel = mLastTrimLevel;
+		final LruCache<String, byte[]> encodedCache = mEncodedCache;
+		if (encodedCache != null) {
+			stats.encodedSize = encodedCache.size();
+			stats.encodedMaxSize = encodedCache.maxSize();
+			stats.encodedHitCount = encodedCache.hitCount();
+			stats.encodedMissCount = encodedCache.missCount();
+		}
+		final DiskLruCache diskCache = mDiskCache;
+		if (diskCache != null) {
+			final long variantByteSize = diskCache.getDerivedByteSize();
+			final int variantCount = diskCache.getDerivedItemCount();
+			stats.diskOriginalByteSize = diskCache.getByteSize() - variantByteSize;
+			stats.diskOriginalCount = diskCache.getItemCount() - variantCount;
+			stats.diskVariantByteSize = variantByteSize;
+			stats.diskVariantCount = variantCount;
+		}
+		stats.diskOriginalHitCount = mOriginalHitCount.get();
+		stats.diskVariantHitCount = mVariantHitCount.get();
+		final BitmapPool bitmapPool = mBitmapPool;
+		if (bitmapPool != null) {
+			stats.bitmapPoolSize = bitmapPool.getSize();
+			stats.bitmapPoolHitCount = bitmapPool.getHitCount();
+			stats.bitmapPoolMissCount = bitmapPool.getMissCount();
+		}
+		return stats;
+	}
 
-			// Add to disk cache
-			if (mDiskCache != null && !mDiskCache.containsKey(data)) {
-				mDiskCache.put(data, bitmap);
+	/**
+	 * @return The pool of bitmaps that decodes can reuse, or null if reuse is
+	 *         disabled or not supported
+	 */
+	public BitmapPool getBitmapPool() {
+		return mBitmapPool;
+	}
+
+	/**
+	 * Gives a bitmap the app no longer shows or holds back for reuse by
+	 * decodes. Bitmaps evicted from the memory cache are not pooled on their
+	 * own, an ImageView may still draw them. The bitmap is removed from the
+	 * memory cache and must not be used afterwards.
+	 * 
+	 * @param bitmap
+	 */
+	public void recycleBitmap(Bitmap bitmap) {
+		final BitmapPool bitmapPool = mBitmapPool;
+		if (bitmapPool == null || bitmap == null) {
+			return;
+		}
+		synchronized (mLeases) {
+			final Lease lease = mLeases.get(bitmap);
+			if (lease != null && (lease.count > 0 || lease.pins > 0)) {
+				return;
 			}
 		}
+		final StripedLruCache<String, Bitmap> memoryCache = mMemoryCache;
+		if (memoryCache != null) {
+			for (Map.Entry<String, Bitmap> entry : memoryCache.snapshot().entrySet()) {
+				if (entry.getValue() == bitmap) {
+					memoryCache.remove(entry.getKey());
+				}
+			}
+		}
+		bitmapPool.put(bitmap);
+	}
+
+	/**
+	 * Blocks until the disk cache writes queued so far are done.
+	 */
+	public void flush() {
+		sDiskWriteQueue.flush();
+		if (mDimensionIndex != null) {
+			mDimensionIndex.flush();
+		}
+	}
+
+	/**
+	 * Looks up the recorded bounds of a disk cache file, so that it can be
+	 * decoded without reading its header first.
+	 * 
+	 * @param file
+	 *            The path of the cache file
+	 * @param options
+	 *            Receives outWidth, outHeight and outMimeType
+	 * @return true if the bounds are known
+	 */
+	public boolean getImageBounds(String file, BitmapFactory.Options options) {
+		final ImageDimensionIndex index = mDimensionIndex;
+		return index != null && index.get(file, options);
+	}
+
+	/**
+	 * Records the bounds of a disk cache file read by a decode.
+	 * 
+	 * @param file
+	 *            The path of the cache file
+	 * @param options
+	 *            Options with outWidth, outHeight and outMimeType set
+	 */
+	public void putImageBounds(String file, BitmapFactory.Options options) {
+		final ImageDimensionIndex index = mDimensionIndex;
+		if (index != null) {
+			index.put(file, options);
+		}
+	}
+
+	private void recordImageBounds(String file, Bitmap bitmap, CompressFormat format) {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.outWidth = bitmap.getWidth();
+		options.outHeight = bitmap.getHeight();
+		options.outMimeType = format == CompressFormat.PNG ? "image/png" : format == CompressFormat.JPEG ? "image/jpeg" : "image/webp";
+		putImageBounds(file, options);
 	}
 
 	/**
-	 * Get from memory cache.
+	 * Get a full size bitmap from memory cache.
 	 * 
 	 * @param data
 	 *            Unique identifier for which item to get
 	 * @return The bitmap if found in cache, null otherwise
 	 */
 	public Bitmap getBitmapFromMemCache(String data) {
-		if (mMemoryCache != null) {
-			final Bitmap memBitmap = mMemoryCache.get(data);
-			if (memBitmap != null) {
-				return memBitmap;
+		return getBitmapFromMemCache(data, 0, 0);
+	}
+
+	/**
+	 * Get a bitmap for a requested size from memory cache. Without a bitmap
+	 * for the size bucket of the request, the nearest larger one cached for
+	 * the same image is scaled down and cached for the bucket.
+	 * 
+	 * @param data
+	 *            Unique identifier for which item to get
+	 * @param reqWidth
+	 *            The requested width, 0 for full size
+	 * @param reqHeight
+	 *            The requested height, 0 for full size
+	 * @return The bitmap if found in cache, null otherwise
+	 */
+	public Bitmap getBitmapFromMemCache(String data, int reqWidth, int reqHeight) {
+		final StripedLruCache<String, Bitmap> memoryCache = mMemoryCache;
+		if (memoryCache == null || data == null) {
+			return null;
+		}
+		final int bucket = getVariantBucket(reqWidth, reqHeight);
+		final String key = getMemoryCacheKey(data, bucket);
+		final Bitmap memBitmap = memoryCache.get(key);
+		if (memBitmap != null) {
+			return memBitmap;
+		}
+
+		// Evicted but still alive, promote it back
+		final Bitmap evicted = takeEvicted(key);
+		if (evicted != null) {
+			mEvictedHitCount.incrementAndGet();
+			addBitmapToMemCache(data, bucket, evicted, 0);
+			return evicted;
+		}
+		if (bucket == 0) {
+			return null;
+		}
+
+		final int largerBucket = findLargerBucket(data, bucket);
+		if (largerBucket < 0) {
+			return null;
+		}
+		final Bitmap larger = memoryCache.get(getMemoryCacheKey(data, largerBucket));
+		if (larger == null) {
+			return null;
+		}
+		final Bitmap scaled = scaleDown(larger, reqWidth, reqHeight);
+		if (scaled != larger) {
+			addBitmapToMemCache(data, bucket, scaled, 0);
+		}
+		return scaled;
+	}
+
+	/**
+	 * Adds a bitmap decoded for a requested size to the memory cache only,
+	 * for images that are kept on disk elsewhere.
+	 * 
+	 * @param data
+	 *            Unique identifier for the bitmap
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param bitmap
+	 * @param loadTime
+	 *            How long it took to load the bitmap in milliseconds, 0 if
+	 *            unknown
+	 */
+	public void addBitmapToMemCache(String data, int reqWidth, int reqHeight, Bitmap bitmap, long loadTime) {
+		if (data != null && bitmap != null) {
+			addBitmapToMemCache(data, getVariantBucket(reqWidth, reqHeight), bitmap, loadTime);
+		}
+	}
+
+	private void addBitmapToMemCache(String data, int bucket, Bitmap bitmap, long loadTime) {
+		final StripedLruCache<String, Bitmap> memoryCache = mMemoryCache;
+		if (memoryCache == null) {
+			return;
+		}
+		final String key = getMemoryCacheKey(data, bucket);
+		if (memoryCache.get(key) == null) {
+			synchronized (mLeases) {
+				final Lease lease = mLeases.get(bitmap);
+				if (lease != null) {
+					lease.evicted = false;
+				}
+			}
+			synchronized (mMemoryBuckets) {
+				final Integer buckets = mMemoryBuckets.get(data);
+				mMemoryBuckets.put(data, (buckets == null ? 0 : buckets) | bucketBit(bucket));
 			}
+			memoryCache.put(key, bitmap, loadTime);
+			enforceMemoryLimit(memoryCache);
+		}
+	}
+
+	@SuppressLint("NewApi")
+	private void registerMemoryTrimCallbacks() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH && mAppContext != null) {
+			mMemoryTrimCallbacks = new MemoryTrimCallbacks().register(mAppContext, this);
+		}
+	}
+
+	@SuppressLint("NewApi")
+	private void unregisterMemoryTrimCallbacks() {
+		if (mMemoryTrimCallbacks != null) {
+			new MemoryTrimCallbacks().unregister(mAppContext, mMemoryTrimCallbacks);
+			mMemoryTrimCallbacks = null;
+		}
+	}
+
+	/**
+	 * Trims the memory caches for a level passed to
+	 * {@link android.content.ComponentCallbacks2#onTrimMemory(int)}: to three
+	 * quarters while running moderately low, to half while running low or
+	 * once the UI is hidden, to a quarter when critical or in the background
+	 * and completely when the process is next to be killed. The memory cache
+	 * then stays capped for {@link ImageCacheParams#memoryTrimRecoveryDelay}.
+	 * Called automatically on ICS and later unless
+	 * {@link ImageCacheParams#trimOnMemoryPressure} is false.
+	 * 
+	 * @param level
+	 */
+	public void trimMemory(int level) {
+		final float fraction = getTrimFraction(level);
+		if (fraction >= 1f) {
+			return;
+		}
+		mLastTrimLevel = level;
+		mLastTrimTime = SystemClock.uptimeMillis();
+
+		final StripedLruCache<String, Bitmap> memoryCache = mMemoryCache;
+		if (memoryCache != null) {
+			final int limit = (int) (memoryCache.maxSize() * fraction);
+			mMemoryLimit = limit;
+			// Evicted bitmaps go to the evicted tier, cleared below when
+			// trimming completely
+			memoryCache.trimToSize(limit);
+		}
+		final LruCache<String, byte[]> encodedCache = mEncodedCache;
+		if (encodedCache != null) {
+			trimLruCacheTo(encodedCache, (int) (encodedCache.maxSize() * fraction));
+		}
+		final BitmapPool bitmapPool = mBitmapPool;
+		if (bitmapPool != null) {
+			bitmapPool.trimToSize((int) (bitmapPool.getMaxSize() * fraction));
+		}
+		if (fraction == 0f) {
+			clearEvicted();
+		}
+	}
+
+	private static float getTrimFraction(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			return 0f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+			return 0.25f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			return 0.5f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			return 0.25f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			return 0.5f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+			return 0.75f;
+		}
+		return 1f;
+	}
+
+	/**
+	 * Lets the memory cache grow back to its full size right away after a
+	 * trim, for example when the UI is shown again.
+	 */
+	public void resumeMemoryCache() {
+		mMemoryLimit = Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Empties the memory caches of all live ImageCache instances, called when
+	 * a decode runs out of memory.
+	 */
+	public static void onOutOfMemory() {
+		for (ImageCache cache : getLiveInstances()) {
+			cache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+		}
+	}
+
+	/**
+	 * Removes every size of an image from the memory caches of all live
+	 * ImageCache instances, for example once the image has changed.
+	 * 
+	 * @param data
+	 *            Unique identifier of the image
+	 */
+	public static void removeFromAllMemCaches(String data) {
+		for (ImageCache cache : getLiveInstances()) {
+			cache.removeFromMemCache(data);
+		}
+	}
+
+	/**
+	 * Copies the live caches, the iterator of the WeakHashMap skips caches
+	 * collected meanwhile.
+	 */
+	private static List<ImageCache> getLiveInstances() {
+		synchronized (sInstances) {
+			return new ArrayList<ImageCache>(sInstances.keySet());
+		}
+	}
+
+	private void removeFromMemCache(String data) {
+		final StripedLruCache<String, Bitmap> memoryCache = mMemoryCache;
+		if (memoryCache == null) {
+			return;
+		}
+		// Every size, the evicted tier may still hold sizes no longer cached
+		for (int bucket = 0; bucket >= 0; bucket = bucket == 0 ? MIN_VARIANT_BUCKET : bucket << 1) {
+			final String key = getMemoryCacheKey(data, bucket);
+			memoryCache.remove(key);
+			takeEvicted(key);
+		}
+	}
+
+	/**
+	 * Keeps the memory cache under the limit of the last trim until the
+	 * recovery delay has passed.
+	 */
+	private void enforceMemoryLimit(StripedLruCache<String, Bitmap> memoryCache) {
+		final int limit = mMemoryLimit;
+		if (limit == Integer.MAX_VALUE) {
+			return;
+		}
+		if (SystemClock.uptimeMillis() - mLastTrimTime >= mMemoryTrimRecoveryDelay) {
+			mMemoryLimit = Integer.MAX_VALUE;
+		} else if (memoryCache.size() > limit) {
+			memoryCache.trimToSize(limit);
+		}
+	}
+
+	private static <V> void trimLruCacheTo(LruCache<String, V> cache, int maxSize) {
+		for (String key : cache.snapshot().keySet()) {
+			if (cache.size() <= maxSize) {
+				break;
+			}
+			cache.remove(key);
+		}
+	}
+
+	/**
+	 * Leases a bitmap while it is displayed, it is not reused for decoding
+	 * until every lease has been released. Bitmaps evicted from the memory
+	 * cache while leased are still served from the evicted tier and are
+	 * pooled only once released.
+	 * 
+	 * @param bitmap
+	 */
+	public void acquire(Bitmap bitmap) {
+		synchronized (mLeases) {
+			final Lease lease = getLease(bitmap);
+			lease.count++;
+			lease.displayed = true;
+		}
+		final BitmapPool bitmapPool = mBitmapPool;
+		if (bitmapPool != null) {
+			// Shown again after being pooled
+			bitmapPool.remove(bitmap);
+		}
+	}
+
+	/**
+	 * Releases a lease taken with {@link #acquire(Bitmap)}.
+	 * 
+	 * @param bitmap
+	 */
+	public void release(Bitmap bitmap) {
+		final boolean poolable;
+		synchronized (mLeases) {
+			final Lease lease = mLeases.get(bitmap);
+			if (lease == null || lease.count == 0) {
+				return;
+			}
+			lease.count--;
+			poolable = lease.isPoolable();
+		}
+		final BitmapPool bitmapPool = mBitmapPool;
+		if (poolable && bitmapPool != null) {
+			bitmapPool.put(bitmap);
+		}
+	}
+
+	/**
+	 * @return true if the bitmap is leased by a displayed drawable
+	 */
+	public boolean isLeased(Bitmap bitmap) {
+		synchronized (mLeases) {
+			final Lease lease = mLeases.get(bitmap);
+			return lease != null && lease.count > 0;
+		}
+	}
+
+	/**
+	 * Marks a bitmap handed to code that does not release it, such as a
+	 * {@link ImageWorker.Callback} or the caller of a synchronous load. The
+	 * bitmap is never reused for decoding.
+	 * 
+	 * @param bitmap
+	 */
+	public void markEscaped(Bitmap bitmap) {
+		if (bitmap == null) {
+			return;
+		}
+		synchronized (mLeases) {
+			getLease(bitmap).escaped = true;
+		}
+		final BitmapPool bitmapPool = mBitmapPool;
+		if (bitmapPool != null) {
+			// Pooled just before it was handed out
+			bitmapPool.remove(bitmap);
+		}
+	}
+
+	private void pin(Bitmap bitmap) {
+		synchronized (mLeases) {
+			getLease(bitmap).pins++;
+		}
+	}
+
+	private void unpin(Bitmap bitmap) {
+		final boolean poolable;
+		synchronized (mLeases) {
+			final Lease lease = mLeases.get(bitmap);
+			if (lease == null || lease.pins == 0) {
+				return;
+			}
+			lease.pins--;
+			poolable = lease.isPoolable();
+		}
+		final BitmapPool bitmapPool = mBitmapPool;
+		if (poolable && bitmapPool != null) {
+			bitmapPool.put(bitmap);
+		}
+	}
+
+	/**
+	 * Must be called holding the lease lock.
+	 */
+	private Lease getLease(Bitmap bitmap) {
+		Lease lease = mLeases.get(bitmap);
+		if (lease == null) {
+			lease = new Lease();
+			mLeases.put(bitmap, lease);
+		}
+		return lease;
+	}
+
+	/**
+	 * Pools a bitmap that left the memory cache unless it is still in use.
+	 */
+	private void onRemovedFromMemCache(Bitmap bitmap) {
+		final boolean poolable;
+		synchronized (mLeases) {
+			final Lease lease = mLeases.get(bitmap);
+			if (lease == null) {
+				return;
+			}
+			lease.evicted = true;
+			poolable = lease.isPoolable();
+		}
+		final BitmapPool bitmapPool = mBitmapPool;
+		if (poolable && bitmapPool != null) {
+			bitmapPool.put(bitmap);
+		}
+	}
+
+	private void addEvicted(String key, Bitmap bitmap) {
+		synchronized (mEvictedBitmaps) {
+			purgeEvicted();
+			mEvictedBitmaps.put(key, new EvictedReference(key, bitmap, mEvictedQueue));
+		}
+	}
+
+	/**
+	 * Takes an evicted bitmap that is still alive, and out of the pool if it
+	 * is pooled.
+	 * 
+	 * @param key
+	 *            The memory cache key
+	 * @return The bitmap, or null
+	 */
+	private Bitmap takeEvicted(String key) {
+		// The pool lock first, like when the pool hands out a bitmap, so that
+		// a bitmap still in the tier has not been reused
+		final BitmapPool bitmapPool = mBitmapPool;
+		synchronized (bitmapPool != null ? bitmapPool : mEvictedBitmaps) {
+			final Bitmap bitmap;
+			synchronized (mEvictedBitmaps) {
+				purgeEvicted();
+				final EvictedReference reference = mEvictedBitmaps.remove(key);
+				bitmap = reference != null ? reference.get() : null;
+			}
+			if (bitmap == null || bitmap.isRecycled()) {
+				return null;
+			}
+			if (bitmapPool != null) {
+				bitmapPool.remove(bitmap);
+			}
+			return bitmap;
+		}
+	}
+
+	private void removeEvicted(Bitmap bitmap) {
+		synchronized (mEvictedBitmaps) {
+			final Iterator<EvictedReference> iterator = mEvictedBitmaps.values().iterator();
+			while (iterator.hasNext()) {
+				final Bitmap evicted = iterator.next().get();
+				if (evicted == null || evicted == bitmap) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	private void clearEvicted() {
+		synchronized (mEvictedBitmaps) {
+			mEvictedBitmaps.clear();
+			purgeEvicted();
+		}
+	}
+
+	/**
+	 * Drops the entries of collected bitmaps. Must be called holding the
+	 * lock of the evicted bitmaps.
+	 */
+	private void purgeEvicted() {
+		Reference<? extends Bitmap> reference;
+		while ((reference = mEvictedQueue.poll()) != null) {
+			final String key = ((EvictedReference) reference).key;
+			if (mEvictedBitmaps.get(key) == reference) {
+				mEvictedBitmaps.remove(key);
+			}
+		}
+	}
+
+	private static String getMemoryCacheKey(String data, int bucket) {
+		return data + MEMORY_KEY_SIZE_SEPARATOR + bucket;
+	}
+
+	private void removeMemoryBucket(String key) {
+		final int separator = key.lastIndexOf(MEMORY_KEY_SIZE_SEPARATOR);
+		final String data = key.substring(0, separator);
+		final int bucket = Integer.parseInt(key.substring(separator + 1));
+		synchronized (mMemoryBuckets) {
+			final Integer buckets = mMemoryBuckets.get(data);
+			if (buckets != null) {
+				final int remaining = buckets & ~bucketBit(bucket);
+				if (remaining == 0) {
+					mMemoryBuckets.remove(data);
+				} else {
+					mMemoryBuckets.put(data, remaining);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The smallest bucket larger than the given one with a bitmap of
+	 *         the image, 0 for the full size bitmap, or -1 if there is none
+	 */
+	private int findLargerBucket(String data, int bucket) {
+		final int buckets;
+		synchronized (mMemoryBuckets) {
+			final Integer value = mMemoryBuckets.get(data);
+			if (value == null) {
+				return -1;
+			}
+			buckets = value;
+		}
+		final int larger = buckets & ~((bucketBit(bucket) << 1) - 1);
+		if (larger != 0) {
+			return Integer.lowestOneBit(larger);
+		}
+		return (buckets & 1) != 0 ? 0 : -1;
+	}
+
+	private static int bucketBit(int bucket) {
+		// Buckets are powers of two from MIN_VARIANT_BUCKET on, so they are
+		// their own bit
+		return bucket == 0 ? 1 : bucket;
+	}
+
+	/**
+	 * Scales a bitmap down so that it still covers the requested size.
+	 * 
+	 * @return The scaled bitmap, or the given one if it is not larger than
+	 *         requested
+	 */
+	private static Bitmap scaleDown(Bitmap bitmap, int reqWidth, int reqHeight) {
+		final int width = bitmap.getWidth();
+		final int height = bitmap.getHeight();
+		final float scale = Math.max(reqWidth > 0 ? (float) reqWidth / width : 0f, reqHeight > 0 ? (float) reqHeight / height : 0f);
+		if (scale <= 0f || scale >= 1f) {
+			return bitmap;
+		}
+		try {
+			return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)), true);
+		} catch (OutOfMemoryError e) {
+			e.printStackTrace();
+			return bitmap;
 		}
-		return null;
 	}
 
 	/**
@@ -272,24 +1330,120 @@ public class ImageCache {
 		return null;
 	}
 
+	/**
+	 * Get the data of an image packed into the disk cache, see
+	 * {@link ImageCacheParams#diskCachePackMaxSize}.
+	 * 
+	 * @param data
+	 *            Unique identifier for which item to get
+	 * @return The encoded image, or null if it is not cached or has its own
+	 *         cache file
+	 */
+	public byte[] getPackedData(String data) {
+		if (mDiskCache != null) {
+			return mDiskCache.getPackedData(data);
+		}
+		return null;
+	}
+
+	/**
+	 * Get the compressed data of a disk cache entry from the encoded memory
+	 * cache, reading it from disk into the encoded cache on a miss. Decoding
+	 * the data saves opening the file on the next hit and takes far less
+	 * memory than keeping the decoded bitmap.
+	 * 
+	 * @param data
+	 *            Unique identifier for which item to get
+	 * @return The encoded image, or null if the encoded cache is disabled or
+	 *         the image is not cached or too large for it
+	 */
+	public byte[] getEncodedData(String data) {
+		final LruCache<String, byte[]> encodedCache = mEncodedCache;
+		if (encodedCache == null) {
+			return null;
+		}
+		byte[] encoded = encodedCache.get(data);
+		if (encoded == null && mDiskCache != null) {
+			encoded = mDiskCache.getData(data, encodedCache.maxSize() / ENCODED_CACHE_MAX_ENTRY_FRACTION);
+			if (encoded != null) {
+				encodedCache.put(data, encoded);
+			}
+		}
+		return encoded;
+	}
+
+	/**
+	 * Drops the encoded data of an image and of its downscaled variants, for
+	 * example after the image has been downloaded again.
+	 * 
+	 * @param data
+	 *            Unique identifier of the image
+	 */
+	public void removeEncodedData(String data) {
+		final LruCache<String, byte[]> encodedCache = mEncodedCache;
+		if (encodedCache == null) {
+			return;
+		}
+		encodedCache.remove(data);
+		final String variantSuffix = ':' + data;
+		for (String key : encodedCache.snapshot().keySet()) {
+			if (key.startsWith(DiskLruCache.DERIVED_KEY_PREFIX) && key.endsWith(variantSuffix)) {
+				encodedCache.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Checks if an image is in the disk cache, either as a file or packed.
+	 * 
+	 * @param data
+	 * @return
+	 */
+	public boolean isInDiskCache(String data) {
+		return mDiskCache != null && mDiskCache.containsKey(data);
+	}
+
 	public void clearCaches() {
 		if (mDiskCache != null) {
 			mDiskCache.clearCache();
 		}
+		if (mDimensionIndex != null) {
+			mDimensionIndex.clear();
+		}
+		if (mEncodedCache != null) {
+			mEncodedCache.evictAll();
+		}
 		if (mMemoryCache != null) {
 			mMemoryCache.evictAll();
 		}
+		clearEvicted();
 	}
 
 	public void cleanMemCache() {
+		unregisterMemoryTrimCallbacks();
+		synchronized (sInstances) {
+			sInstances.remove(this);
+		}
+		synchronized (ImageCache.class) {
+			// Torn down, getInstance(Context) creates a new one
+			if (sDefaultInstance != null && sDefaultInstance.get() == this) {
+				sDefaultInstance = null;
+			}
+		}
 		if (mMemoryCache != null) {
 			mMemoryCache.evictAll();
 			mMemoryCache = null;
 		}
-		if (mDiskCache != null) {
-			mDiskCache.clearLinkedHashMap();
-			mDiskCache = null;
+		clearEvicted();
+		if (mBitmapPool != null) {
+			mBitmapPool.clear();
+		}
+		if (mEncodedCache != null) {
+			mEncodedCache.evictAll();
+			mEncodedCache = null;
 		}
+		// The disk cache is shared per directory, only this reference goes
+		mDiskCache = null;
 	}
 
 	/**
@@ -298,7 +1452,16 @@ public class ImageCache {
 	public static class ImageCacheParams {
 		public String uniqueName;
 		public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
+		public int memCacheConcurrencyLevel = StripedLruCache.DEFAULT_CONCURRENCY_LEVEL;
+		public StripedLruCache.EvictionPolicy memCacheEvictionPolicy = DEFAULT_MEM_CACHE_EVICTION_POLICY;
 		public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+		public int diskCacheMaxItems = DEFAULT_DISK_CACHE_MAX_ITEMS;
+		public int diskCachePackMaxSize = DEFAULT_DISK_CACHE_PACK_MAX_SIZE;
+		public boolean diskCacheAdmissionFilter = DEFAULT_DISK_CACHE_ADMISSION_FILTER;
+		public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
+		public int encodedCacheSize = DEFAULT_ENCODED_CACHE_SIZE;
+		public boolean trimOnMemoryPressure = DEFAULT_TRIM_ON_MEMORY_PRESSURE;
+		public long memoryTrimRecoveryDelay = DEFAULT_MEMORY_TRIM_RECOVERY_DELAY;
 		public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
 		public int compressQuality = DEFAULT_COMPRESS_QUALITY;
 		public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
@@ -310,7 +1473,47 @@ public class ImageCache {
 		}
 	}
 
+	/**
+	 * A snapshot of the cache sizes and hit counts, see
+	 * {@link ImageCache#getCacheStats()}.
+	 */
+	public static class CacheStats {
+		public int memorySize;
+		public int memoryMaxSize;
+		public int memoryHitCount;
+		public int memoryMissCount;
+		public int memoryEvictedHitCount;
+		public int memoryLimit;
+		public int lastTrimLevel;
+		public int encodedSize;
+		public int encodedMaxSize;
+		public int encodedHitCount;
+		public int encodedMissCount;
+		public long diskOriginalByteSize;
+		public int diskOriginalCount;
+		public int diskOriginalHitCount;
+		public long diskVariantByteSize;
+		public int diskVariantCount;
+		public int diskVariantHitCount;
+		public int bitmapPoolSize;
+		public int bitmapPoolHitCount;
+		public int bitmapPoolMissCount;
+
+		@Override
+		public String toString() {
+			return "memory " + memorySize + "/" + memoryLimit + "/" + memoryMaxSize + " (last trim level " + lastTrimLevel + ") hits " + memoryHitCount + " misses " + memoryMissCount + " evicted hits "
+					+ memoryEvictedHitCount + ", encoded " + encodedSize + "/" + encodedMaxSize + " hits " + encodedHitCount + " misses "
+					+ encodedMissCount + ", disk originals "
+					+ diskOriginalCount + " (" + diskOriginalByteSize + " bytes) hits " + diskOriginalHitCount + ", disk variants "
+					+ diskVariantCount + " (" + diskVariantByteSize + " bytes) hits " + diskVariantHitCount + ", bitmap pool " + bitmapPoolSize
+					+ " hits " + bitmapPoolHitCount + " misses " + bitmapPoolMissCount;
+		}
+	}
+
 	public void deleteCacheFile(String key) {
+		if (mEncodedCache != null) {
+			mEncodedCache.remove(key);
+		}
 		if (mDiskCache != null) {
 			mDiskCache.deleteCache(key);
 		}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.onemobile.client.image;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import android.graphics.BitmapFactory;
+
+/**
+ * The width, height and MIME type of disk cache files, so that decodes can
+ * pick a sample size without reading the image header first. Entries are
+ * keyed by a 64-bit hash of the file path in an open addressing table and
+ * checked against the file length, a file rewritten with a different length
+ * is not trusted.
+ * <p>
+ * The index is kept in an append-only file of fixed size records, the last
+ * record of a file wins. The file is compacted when it is loaded. There is
+ * one index per file, see {@link #open(File, int)}, so that a single writer
+ * appends to it.
+ */
+class ImageDimensionIndex {
+	private static final int RECORD_SIZE = 8 + 4 + 4 + 4 + 1;
+	private static final int FLUSH_INTERVAL = 32;
+
+	/** The open indexes by file path. */
+	private static final HashMap<String, ImageDimensionIndex> sOpenIndexes = new HashMap<String, ImageDimensionIndex>();
+
+	private static final String[] MIME_TYPES = { null, "image/jpeg", "image/png", "image/gif", "image/webp", "image/bmp" };
+
+	private final File mFile;
+	private final int mMaxEntries;
+
+	private long[] mKeys;
+	private int[] mWidths;
+	private int[] mHeights;
+	private int[] mLengths;
+	private byte[] mMimeTypes;
+	private int mSize;
+
+	private DataOutputStream mWriter;
+	private int mUnflushed;
+
+	private ImageDimensionIndex(File file, int maxEntries) {
+		mFile = file;
+		mMaxEntries = maxEntries;
+		allocate(16);
+		load();
+	}
+
+	/**
+	 * Returns the index kept in a file, loading it on first use. All caches
+	 * on the same directory share it.
+	 * 
+	 * @param file
+	 * @param maxEntries
+	 *            The index is emptied once it holds more files than this
+	 * @return
+	 */
+	static ImageDimensionIndex open(File file, int maxEntries) {
+		synchronized (sOpenIndexes) {
+			ImageDimensionIndex index = sOpenIndexes.get(file.getAbsolutePath());
+			if (index == null) {
+				index = new ImageDimensionIndex(file, maxEntries);
+				sOpenIndexes.put(file.getAbsolutePath(), index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Looks up the bounds of a file.
+	 * 
+	 * @param path
+	 * @param options
+	 *            Receives outWidth, outHeight and outMimeType
+	 * @return true if the bounds are known
+	 */
+	boolean get(String path, BitmapFactory.Options options) {
+		final long key = hash(path);
+		final int width;
+		final int height;
+		final int length;
+		final byte mimeType;
+		synchronized (this) {
+			final int index = indexOf(key);
+			if (mKeys[index] != key) {
+				return false;
+			}
+			width = mWidths[index];
+			height = mHeights[index];
+			length = mLengths[index];
+			mimeType = mMimeTypes[index];
+		}
+		if ((int) new File(path).length() != length) {
+			return false;
+		}
+		options.outWidth = width;
+		options.outHeight = height;
+		options.outMimeType = MIME_TYPES[mimeType];
+		return true;
+	}
+
+	/**
+	 * Records the bounds of a file.
+	 * 
+	 * @param path
+	 * @param options
+	 *            Options with outWidth, outHeight and outMimeType set
+	 */
+	void put(String path, BitmapFactory.Options options) {
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return;
+		}
+		final long length = new File(path).length();
+		if (length == 0) {
+			return;
+		}
+		final long key = hash(path);
+		final byte mimeType = mimeTypeCode(options.outMimeType);
+		synchronized (this) {
+			if (mSize >= mMaxEntries) {
+				clear();
+			}
+			putInternal(key, options.outWidth, options.outHeight, (int) length, mimeType);
+			try {
+				if (mWriter == null) {
+					mWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true), Utils.IO_BUFFER_SIZE));
+				}
+				writeRecord(mWriter, key, options.outWidth, options.outHeight, (int) length, mimeType);
+				if (++mUnflushed >= FLUSH_INTERVAL) {
+					flush();
+				}
+			} catch (final IOException e) {
+				e.printStackTrace();
+				closeWriter();
+			}
+		}
+	}
+
+	/**
+	 * Writes out the records added since the last flush.
+	 */
+	synchronized void flush() {
+		if (mWriter != null) {
+			try {
+				mWriter.flush();
+				mUnflushed = 0;
+			} catch (final IOException e) {
+				e.printStackTrace();
+				closeWriter();
+			}
+		}
+	}
+
+	/**
+	 * Forgets all files.
+	 */
+	synchronized void clear() {
+		closeWriter();
+		mFile.delete();
+		allocate(16);
+		mSize = 0;
+	}
+
+	private void load() {
+		if (!mFile.exists()) {
+			return;
+		}
+		int records = 0;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), Utils.IO_BUFFER_SIZE));
+			while (true) {
+				final long key = in.readLong();
+				final int width = in.readInt();
+				final int height = in.readInt();
+				final int length = in.readInt();
+				final byte mimeType = in.readByte();
+				records++;
+				if (mimeType >= 0 && mimeType < MIME_TYPES.length && mSize < mMaxEntries) {
+					putInternal(key, width, height, length, mimeType);
+				}
+			}
+		} catch (final EOFException e) {
+			// End of the records, a partly written last record is dropped
+		} catch (final IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		if (records > mSize * 2 || mFile.length() != (long) records * RECORD_SIZE) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrites the file with one record per file.
+	 */
+	private void compact() {
+		final File tmp = new File(mFile.getPath() + DiskLruCache.TMP_FILE_SUFFIX);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), Utils.IO_BUFFER_SIZE));
+			for (int i = 0; i < mKeys.length; i++) {
+				if (mKeys[i] != 0) {
+					writeRecord(out, mKeys[i], mWidths[i], mHeights[i], mLengths[i], mMimeTypes[i]);
+				}
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(mFile)) {
+				mFile.delete();
+				tmp.renameTo(mFile);
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+			tmp.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, long key, int width, int height, int length, byte mimeType) throws IOException {
+		out.writeLong(key);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(length);
+		out.writeByte(mimeType);
+	}
+
+	private void closeWriter() {
+		if (mWriter != null) {
+			try {
+				mWriter.close();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+			mWriter = null;
+		}
+		mUnflushed = 0;
+	}
+
+	private void putInternal(long key, int width, int height, int length, byte mimeType) {
+		int index = indexOf(key);
+		if (mKeys[index] != key) {
+			// Keep the table at most half full
+			if ((mSize + 1) * 2 > mKeys.length) {
+				rehash(mKeys.length * 2);
+				index = indexOf(key);
+			}
+			mKeys[index] = key;
+			mSize++;
+		}
+		mWidths[index] = width;
+		mHeights[index] = height;
+		mLengths[index] = length;
+		mMimeTypes[index] = mimeType;
+	}
+
+	/**
+	 * @return The slot holding the key, or the empty slot it would go to
+	 */
+	private int indexOf(long key) {
+		final int mask = mKeys.length - 1;
+		int index = (int) (key ^ (key >>> 32)) & mask;
+		while (mKeys[index] != 0 && mKeys[index] != key) {
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+
+	private void rehash(int capacity) {
+		final long[] keys = mKeys;
+		final int[] widths = mWidths;
+		final int[] heights = mHeights;
+		final int[] lengths = mLengths;
+		final byte[] mimeTypes = mMimeTypes;
+		allocate(capacity);
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != 0) {
+				final int index = indexOf(keys[i]);
+				mKeys[index] = keys[i];
+				mWidths[index] = widths[i];
+				mHeights[index] = heights[i];
+				mLengths[index] = lengths[i];
+				mMimeTypes[index] = mimeTypes[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		mKeys = new long[capacity];
+		mWidths = new int[capacity];
+		mHeights = new int[capacity];
+		mLengths = new int[capacity];
+		mMimeTypes = new byte[capacity];
+	}
+
+	private static byte mimeTypeCode(String mimeType) {
+		for (int i = 1; i < MIME_TYPES.length; i++) {
+			if (MIME_TYPES[i].equals(mimeType)) {
+				return (byte) i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of a path, never 0 since 0 marks empty slots.
+	 */
+	private static long hash(String path) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < path.length(); i++) {
+			hash ^= path.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash != 0 ? hash : 1;
+	}
+}
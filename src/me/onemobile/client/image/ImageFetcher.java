@@ -17,18 +17,21 @@
 package me.onemobile.client.image;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.LinkedList;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentActivity;
 
 /**
@@ -37,6 +40,17 @@ import android.support.v4.app.FragmentActivity;
 public class ImageFetcher extends ImageResizer {
     private static final String TAG = "ImageFetcher";
 
+    /** Default limit of the size of a downloaded image in bytes. */
+    public static final int DEFAULT_MAX_DOWNLOAD_SIZE = 1024 * 1024 * 10; // 10MB
+
+    private static final int TRANSFER_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_TRANSFER_BUFFERS = 8;
+
+    private static volatile int sMaxDownloadSize = DEFAULT_MAX_DOWNLOAD_SIZE;
+
+    /** Copy buffers reused across downloads. */
+    private static final LinkedList<byte[]> sTransferBuffers = new LinkedList<byte[]>();
+
     /**
      * Initialize providing a target image width and height for the processing images.
      *
@@ -101,31 +115,175 @@ public class ImageFetcher extends ImageResizer {
      * @return The downloaded and resized bitmap
      */
     private Bitmap processBitmap(String data, int reqWidth, int reqHeight) {
-        // Download a bitmap, write it to a file
-        final File f = downloadBitmap(mContext, data);
+        // Download a bitmap, write it to a file while decoding it
+        final StreamingDecode decode = new StreamingDecode(reqWidth, reqHeight, strictMode, getBitmapPool());
+        final File f = downloadBitmap(mContext, data, decode);
 
         if (f != null) {
+            if (mImageCache != null && decode.isReplaced()) {
+                // The bytes held for the stale image are outdated
+                mImageCache.removeEncodedData(data);
+            }
+            final Bitmap decoded = decode.getBitmap();
+            if (decoded != null) {
+                if (mImageCache != null) {
+                    mImageCache.putImageBounds(f.toString(), decode.bounds);
+                    mImageCache.addVariantToCache(data, reqWidth, reqHeight);
+                }
+                return decoded;
+            }
             // Return a sampled down version
-            return decodeSampledBitmapFromFile(f.toString(), reqWidth, reqWidth, strictMode);
+            final Bitmap bitmap = processBitmapByFile(f.toString(), reqWidth, reqHeight);
+            if (bitmap != null) {
+                if (mImageCache != null) {
+                    mImageCache.addVariantToCache(data, reqWidth, reqHeight);
+                }
+                return bitmap;
+            }
+            // The image is already cached in the pack store
+            return processBitmapFromDiskCache(data, reqWidth, reqHeight);
         }
 
         return null;
     }
 
+    /**
+     * Decodes a response body while {@link ImageFetcher#downloadBitmap(Context, String, StreamDecoder)}
+     * writes it to the disk cache.
+     */
+    public interface StreamDecoder {
+        /**
+         * Reads the body, called on the download thread. Bytes left unread are still stored.
+         *
+         * @param in The body, supporting mark, must not be closed
+         */
+        public void decode(InputStream in);
+
+        /**
+         * Called once the whole body has been read and committed to the disk cache. A decode
+         * of a body that did not end cleanly must be discarded.
+         *
+         * @param replaced true if the body replaced a stale cache entry
+         */
+        public void onCommitted(boolean replaced);
+    }
+
+    /**
+     * Samples down a downloaded image straight from the network.
+     */
+    private static class StreamingDecode implements StreamDecoder {
+        final BitmapFactory.Options bounds = new BitmapFactory.Options();
+        private final int reqWidth;
+        private final int reqHeight;
+        private final boolean strictInSampleSize;
+        private final BitmapPool pool;
+        private Bitmap bitmap;
+        private boolean committed;
+        private boolean replaced;
+
+        StreamingDecode(int reqWidth, int reqHeight, boolean strictInSampleSize, BitmapPool pool) {
+            this.reqWidth = reqWidth;
+            this.reqHeight = reqHeight;
+            this.strictInSampleSize = strictInSampleSize;
+            this.pool = pool;
+        }
+
+        @Override
+        public void decode(InputStream in) {
+            bitmap = decodeSampledBitmapFromStream(in, reqWidth, reqHeight, strictInSampleSize, pool, bounds);
+        }
+
+        @Override
+        public void onCommitted(boolean replaced) {
+            committed = true;
+            this.replaced = replaced;
+        }
+
+        /**
+         * @return true if the download replaced a stale cache entry
+         */
+        boolean isReplaced() {
+            return replaced;
+        }
+
+        /**
+         * @return The decoded bitmap if the download was committed, null otherwise
+         */
+        Bitmap getBitmap() {
+            return committed ? bitmap : null;
+        }
+    }
+
     @Override
 	protected Bitmap processBitmap(Object data, int reqWidth, int reqHeight) {
 		return processBitmap(String.valueOf(data), reqWidth, reqHeight);
 	}
 
+    /**
+     * Downloaded images are fresh until the expiry time of their response, see
+     * {@link #downloadBitmap(Context, String)}.
+     */
+    @Override
+    protected boolean isDiskCacheEntryFresh(String key) {
+        return isFresh(mContext, key);
+    }
+
+    /**
+     * Checks if a downloaded image can be used without revalidating it.
+     *
+     * @param context The context to use
+     * @param urlString The URL of the image
+     * @return false if the cached response has expired
+     */
+    public static boolean isFresh(Context context, String urlString) {
+        final File cacheDir = DiskLruCache.getDiskCacheDir(context, ImageCache.CACHE_DIR_IMAGES);
+        final DiskLruCache cache = DiskLruCache.openCache(context, cacheDir, ImageCache.DEFAULT_DISK_CACHE_SIZE);
+        return cache == null || isFresh(cache, urlString);
+    }
+
+    private static boolean isFresh(DiskLruCache cache, String urlString) {
+        long expires = cache.getExpiry(urlString);
+        if (expires < 0) {
+            if (!cache.containsKey(urlString)) {
+                return true;
+            }
+            // First check since the cache was opened, the metadata file is read once
+            final HttpCacheMetadata metadata = HttpCacheMetadata.read(new File(cache.getMetadataFile(urlString)));
+            // Entries cached before validators were stored stay valid
+            expires = metadata == null ? Long.MAX_VALUE : metadata.expires;
+            cache.setExpiry(urlString, expires);
+        }
+        return System.currentTimeMillis() < expires;
+    }
+
     /**
      * Download a bitmap from a URL, write it to a disk and return the File pointer. This
-     * implementation uses a simple disk cache.
+     * implementation uses a simple disk cache. If the image is already cached in the pack store
+     * the returned file does not exist, use {@link ImageCache#getPackedData(String)} instead.
+     * <p>
+     * The validators and expiry time of the response are kept with the cache entry. A fresh entry
+     * is returned without touching the network, a stale one is revalidated with a conditional
+     * request and replaced only if the server sends a new image. A stale entry is still returned if
+     * the server can't be reached.
      *
      * @param context The context to use
      * @param urlString The URL to fetch
      * @return A File pointing to the fetched bitmap
      */
 	public static File downloadBitmap(Context context, String urlString) {
+		return downloadBitmap(context, urlString, null);
+	}
+
+    /**
+     * Download a bitmap like {@link #downloadBitmap(Context, String)}, handing the response body
+     * to a decoder while it is written to the cache file.
+     *
+     * @param context The context to use
+     * @param urlString The URL to fetch
+     * @param decoder Decodes the body if the image is downloaded, or null
+     * @return A File pointing to the fetched bitmap
+     */
+	public static File downloadBitmap(Context context, String urlString, StreamDecoder decoder) {
 		final File cacheDir = DiskLruCache.getDiskCacheDir(context, ImageCache.CACHE_DIR_IMAGES);
 
 		final DiskLruCache cache = DiskLruCache.openCache(context, cacheDir, ImageCache.DEFAULT_DISK_CACHE_SIZE);
@@ -134,26 +292,73 @@ public class ImageFetcher extends ImageResizer {
 		}
 
 		final File cacheFile = new File(cache.createFilePath(urlString));
-
+		final File metadataFile = new File(cache.getMetadataFile(urlString));
+		HttpCacheMetadata metadata = null;
 		if (cache.containsKey(urlString)) {
-			return cacheFile;
+			if (isFresh(cache, urlString)) {
+				return cacheFile;
+			}
+			// Stale, its validators make the request conditional
+			metadata = HttpCacheMetadata.read(metadataFile);
 		}
 
 		Utils.disableConnectionReuseIfNecessary();
 		HttpURLConnection urlConnection = null;
-		BufferedOutputStream out = null;
+		OutputStream out = null;
+		byte[] buffer = null;
+		File tmpFile = null;
 
 		try {
 			final URL url = new URL(urlString);
 			urlConnection = (HttpURLConnection) url.openConnection();
-			final InputStream in = new BufferedInputStream(urlConnection.getInputStream(), Utils.IO_BUFFER_SIZE);
-			out = new BufferedOutputStream(new FileOutputStream(cacheFile), Utils.IO_BUFFER_SIZE);
+			if (metadata != null && metadata.hasValidators()) {
+				metadata.addConditionalHeaders(urlConnection);
+			}
+			final long requestTime = System.currentTimeMillis();
+			if (metadata != null && urlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				metadata.update(urlConnection, requestTime);
+				metadata.write(metadataFile);
+				cache.setExpiry(urlString, metadata.expires);
+				return cacheFile;
+			}
 
-			int b;
-			while ((b = in.read()) != -1) {
-				out.write(b);
+			final int maxSize = sMaxDownloadSize;
+			if (urlConnection.getContentLength() > maxSize) {
+				throw new IOException("Image larger than " + maxSize + " bytes: " + urlString);
 			}
+			// Written aside so that a stale entry stays readable until replaced,
+			// each download of the same URL has its own file
+			tmpFile = cache.createTempFile(urlString);
+			// Bytes are copied in whole buffers, no need to buffer the file
+			out = new FileOutputStream(tmpFile);
+			buffer = obtainTransferBuffer();
 
+			final TeeInputStream tee = new TeeInputStream(urlConnection.getInputStream(), out, maxSize);
+			if (decoder != null) {
+				// Decode from the network while the same bytes go to the file,
+				// then store whatever the decoder did not read
+				decoder.decode(new BufferedInputStream(tee, Utils.IO_BUFFER_SIZE));
+			}
+			tee.drain(buffer);
+			out.close();
+			out = null;
+
+			cache.edit(urlString);
+			if (!tmpFile.renameTo(cacheFile)) {
+				cache.abort(urlString);
+				throw new IOException("Could not store " + urlString);
+			}
+			cache.commit(urlString);
+			if (metadata != null) {
+				// The image has changed, its downscaled variants are outdated
+				cache.deleteDerived(urlString);
+			}
+			final HttpCacheMetadata response = HttpCacheMetadata.fromResponse(urlConnection, requestTime);
+			response.write(metadataFile);
+			cache.setExpiry(urlString, response.expires);
+			if (decoder != null) {
+				decoder.onCommitted(metadata != null);
+			}
 			return cacheFile;
 
 		} catch (final IOException e) {
@@ -169,30 +374,79 @@ public class ImageFetcher extends ImageResizer {
 					e.printStackTrace();
 				}
 			}
+			if (buffer != null) {
+				recycleTransferBuffer(buffer);
+			}
+			if (tmpFile != null) {
+				tmpFile.delete();
+			}
 		}
 
+		if (metadata != null && cache.containsKey(urlString)) {
+			return cacheFile;
+		}
 		return null;
 	}
 	
+    /**
+     * Sets the limit of the size of a downloaded image, larger responses are dropped.
+     *
+     * @param maxSize The size in bytes
+     */
+    public static void setMaxDownloadSize(int maxSize) {
+        sMaxDownloadSize = maxSize;
+    }
+
+    private static byte[] obtainTransferBuffer() {
+        synchronized (sTransferBuffers) {
+            if (!sTransferBuffers.isEmpty()) {
+                return sTransferBuffers.removeFirst();
+            }
+        }
+        return new byte[TRANSFER_BUFFER_SIZE];
+    }
+
+    private static void recycleTransferBuffer(byte[] buffer) {
+        synchronized (sTransferBuffers) {
+            if (sTransferBuffers.size() < MAX_POOLED_TRANSFER_BUFFERS) {
+                sTransferBuffers.addFirst(buffer);
+            }
+        }
+    }
+
     /**
      * A sync method to get the image. </p>
      * 
      * @param url
      * @return
      */
-    public Bitmap getImage(String url, int reqWidth, int reqHeight) {
+    public Bitmap getImage(final String url, final int reqWidth, final int reqHeight) {
         if (mImageCache == null) {
         	return null;
         }
         // from memory
-        Bitmap bitmap = mImageCache.getBitmapFromMemCache(url);
-        
-        // from disk cache
+        Bitmap bitmap = mImageCache.getBitmapFromMemCache(url, reqWidth, reqHeight);
         if (bitmap == null) {
-        	String cacheFile = mImageCache.getCacheFile(url);
-			if (cacheFile != null && cacheFile.length() > 0) {
-				bitmap = processBitmapByFile(cacheFile, reqWidth, reqHeight);
-			}
+            // Shares the load with tasks loading the same image
+            bitmap = InFlightLoads.load(InFlightLoads.getKey(url, reqWidth, reqHeight), null, new InFlightLoads.Load() {
+                @Override
+                public Bitmap load(InFlightLoads.Flight flight) {
+                    return fetchImage(url, reqWidth, reqHeight);
+                }
+            });
+        }
+        // Kept by the caller, never reused for decoding
+        mImageCache.markEscaped(bitmap);
+        return bitmap;
+    }
+
+    private Bitmap fetchImage(String url, int reqWidth, int reqHeight) {
+        Bitmap bitmap = null;
+        final long startTime = SystemClock.uptimeMillis();
+        
+        // from disk cache, stale entries are revalidated by the download
+        if (isDiskCacheEntryFresh(url)) {
+        	bitmap = processBitmapFromDiskCache(url, reqWidth, reqHeight);
         }
         
         // download
@@ -201,7 +455,7 @@ public class ImageFetcher extends ImageResizer {
     	}
     	
     	if (bitmap != null) {
-            mImageCache.addBitmapToCache(url, bitmap);
+            mImageCache.addBitmapToCache(url, reqWidth, reqHeight, bitmap, SystemClock.uptimeMillis() - startTime);
         }
     	return bitmap;
     }
@@ -16,12 +16,18 @@
 
 package me.onemobile.client.image;
 
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.TypedValue;
 
 /**
  * A simple subclass of {@link ImageWorker} that resizes images from resources
@@ -30,6 +36,10 @@ import android.graphics.BitmapFactory;
  */
 public class ImageResizer extends ImageWorker {
 
+	// Bytes kept for reading the image header a second time, enough for the
+	// headers of most JPEG, PNG and GIF files
+	private static final int HEADER_MARK_LIMIT = 64 * 1024;
+
 	protected boolean strictMode = true;
 
 	/**
@@ -92,7 +102,7 @@ public class ImageResizer extends ImageWorker {
 	 * @return
 	 */
 	private Bitmap processBitmap(int resId, int reqWidth, int reqHeight) {
-		return decodeSampledBitmapFromResource(mContext.getResources(), resId, reqWidth, reqWidth, strictMode);
+		return decodeSampledBitmapFromResource(mContext.getResources(), resId, reqWidth, reqWidth, strictMode, getBitmapPool());
 	}
 
 	@Override
@@ -102,7 +112,30 @@ public class ImageResizer extends ImageWorker {
 
 	@Override
 	protected Bitmap processBitmapByFile(String file, int reqWidth, int reqHeight) {
-		return decodeSampledBitmapFromFile(file, reqWidth, reqHeight, strictMode);
+		final ImageCache imageCache = mImageCache;
+		if (imageCache == null) {
+			return decodeSampledBitmapFromFile(file, reqWidth, reqHeight, strictMode, getBitmapPool());
+		}
+		// Known bounds skip the header pass, unknown ones are recorded
+		final BitmapFactory.Options bounds = new BitmapFactory.Options();
+		final boolean known = imageCache.getImageBounds(file, bounds);
+		final Bitmap bitmap = decodeSampledBitmapFromFile(file, reqWidth, reqHeight, strictMode, getBitmapPool(), bounds);
+		if (bitmap != null && !known) {
+			imageCache.putImageBounds(file, bounds);
+		}
+		return bitmap;
+	}
+
+	@Override
+	protected Bitmap processBitmapByData(byte[] data, int reqWidth, int reqHeight) {
+		return decodeSampledBitmapFromByteArray(data, reqWidth, reqHeight, strictMode, getBitmapPool());
+	}
+
+	/**
+	 * @return The pool decodes take bitmaps from, or null
+	 */
+	protected BitmapPool getBitmapPool() {
+		return mImageCache != null ? mImageCache.getBitmapPool() : null;
 	}
 
 	/**
@@ -122,18 +155,64 @@ public class ImageResizer extends ImageWorker {
 	 *         requested width and height
 	 */
 	public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId, int reqWidth, int reqHeight, boolean strictInSampleSize) {
+		return decodeSampledBitmapFromResource(res, resId, reqWidth, reqHeight, strictInSampleSize, null);
+	}
 
-		// First decode with inJustDecodeBounds=true to check dimensions
-		final BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inJustDecodeBounds = true;
-		BitmapFactory.decodeResource(res, resId, options);
+	/**
+	 * Decode and sample down a bitmap from resources, reusing a bitmap from
+	 * the pool if a compatible one is available.
+	 * 
+	 * @param res
+	 * @param resId
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param strictInSampleSize
+	 * @param pool
+	 *            The pool to take a bitmap from, or null
+	 * @return
+	 */
+	public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId, int reqWidth, int reqHeight, boolean strictInSampleSize,
+			BitmapPool pool) {
+		// Open the resource once, the value carries its density for scaling
+		final TypedValue value = new TypedValue();
+		InputStream in = res.openRawResource(resId, value);
+		try {
+			if (!in.markSupported()) {
+				in = new BufferedInputStream(in, Utils.IO_BUFFER_SIZE);
+			}
 
-		// Calculate inSampleSize
-		options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight, strictInSampleSize);
+			// First decode with inJustDecodeBounds=true to check dimensions
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			in.mark(HEADER_MARK_LIMIT);
+			BitmapFactory.decodeResourceStream(res, value, in, null, options);
+			try {
+				in.reset();
+			} catch (IOException e) {
+				// The header was larger than the mark limit
+				closeStream(in);
+				in = res.openRawResource(resId, value);
+			}
+
+			// Calculate inSampleSize
+			options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight, strictInSampleSize);
 
-		// Decode bitmap with inSampleSize set
-		options.inJustDecodeBounds = false;
-		return BitmapFactory.decodeResource(res, resId, options);
+			// Decode bitmap with inSampleSize set
+			options.inJustDecodeBounds = false;
+			addInBitmapOptions(options, pool);
+			try {
+				return BitmapFactory.decodeResourceStream(res, value, in, null, options);
+			} catch (IllegalArgumentException e) {
+				if (clearInBitmap(options)) {
+					closeStream(in);
+					in = res.openRawResource(resId, value);
+					return BitmapFactory.decodeResourceStream(res, value, in, null, options);
+				}
+				throw e;
+			}
+		} finally {
+			closeStream(in);
+		}
 	}
 
 	/**
@@ -150,32 +229,297 @@ public class ImageResizer extends ImageWorker {
 	 *         ratio and dimensions that are equal to or greater than the
 	 *         requested width and height
 	 */
-	public static synchronized Bitmap decodeSampledBitmapFromFile(String filename, int reqWidth, int reqHeight, boolean strictInSampleSize) {
+	public static Bitmap decodeSampledBitmapFromFile(String filename, int reqWidth, int reqHeight, boolean strictInSampleSize) {
+		return decodeSampledBitmapFromFile(filename, reqWidth, reqHeight, strictInSampleSize, null);
+	}
+
+	/**
+	 * Decode and sample down a bitmap from a file, reusing a bitmap from the
+	 * pool if a compatible one is available.
+	 * 
+	 * @param filename
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param strictInSampleSize
+	 * @param pool
+	 *            The pool to take a bitmap from, or null
+	 * @return
+	 */
+	public static Bitmap decodeSampledBitmapFromFile(String filename, int reqWidth, int reqHeight, boolean strictInSampleSize,
+			BitmapPool pool) {
+		return decodeSampledBitmapFromFile(filename, reqWidth, reqHeight, strictInSampleSize, pool, null);
+	}
+
+	/**
+	 * Decode and sample down a bitmap from a file whose bounds may already be
+	 * known, skipping the pass that reads them.
+	 * 
+	 * @param filename
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param strictInSampleSize
+	 * @param pool
+	 *            The pool to take a bitmap from, or null
+	 * @param bounds
+	 *            Options with outWidth, outHeight and outMimeType of the file
+	 *            if known, otherwise they are set from the file. May be null.
+	 * @return
+	 */
+	public static Bitmap decodeSampledBitmapFromFile(String filename, int reqWidth, int reqHeight, boolean strictInSampleSize,
+			BitmapPool pool, BitmapFactory.Options bounds) {
+		FileInputStream file = null;
 		try {
+			// Open the file once, the header is read again from the buffer
+			file = new FileInputStream(filename);
+			InputStream in = new BufferedInputStream(file, Utils.IO_BUFFER_SIZE);
+
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			if (bounds != null && bounds.outWidth > 0 && bounds.outHeight > 0) {
+				options.outWidth = bounds.outWidth;
+				options.outHeight = bounds.outHeight;
+				options.outMimeType = bounds.outMimeType;
+			} else {
+				// First decode with inJustDecodeBounds=true to check dimensions
+				options.inJustDecodeBounds = true;
+				in.mark(HEADER_MARK_LIMIT);
+				BitmapFactory.decodeStream(in, null, options);
+				try {
+					in.reset();
+				} catch (IOException e) {
+					// The header was larger than the mark limit
+					in = rewind(file);
+				}
+				if (bounds != null) {
+					bounds.outWidth = options.outWidth;
+					bounds.outHeight = options.outHeight;
+					bounds.outMimeType = options.outMimeType;
+				}
+			}
+
+			// Calculate inSampleSize
+			options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight, strictInSampleSize);
+
+			// Wait until the decoded bitmap fits the memory budget
+			final DecodeGovernor governor = DecodeGovernor.getInstance();
+			final long bytes = DecodeGovernor.estimateBytes(options);
+			if (!governor.acquire(bytes)) {
+				// Interrupted, the interrupt status stays set so that callers
+				// can tell this from a bad image
+				return null;
+			}
+
+			try {
+				// Decode bitmap with inSampleSize set
+				options.inJustDecodeBounds = false;
+				addInBitmapOptions(options, pool);
+
+				try {
+					return BitmapFactory.decodeStream(in, null, options);
+				} catch (IllegalArgumentException e) {
+					if (clearInBitmap(options)) {
+						return BitmapFactory.decodeStream(rewind(file), null, options);
+					}
+					throw e;
+				}
+			} finally {
+				governor.release(bytes);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		} catch (OutOfMemoryError e) {
+			e.printStackTrace();
+			ImageCache.onOutOfMemory();
+			return null;
+		} finally {
+			closeStream(file);
+		}
+	}
 
+	/**
+	 * Decode and sample down a bitmap from a stream that is read only once,
+	 * like a download. The bounds are read through the mark of the stream.
+	 * 
+	 * @param in
+	 *            A stream supporting mark, it is not closed
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param strictInSampleSize
+	 * @param pool
+	 *            The pool to take a bitmap from, or null
+	 * @param bounds
+	 *            Receives outWidth, outHeight and outMimeType, may be null
+	 * @return The bitmap, or null if it could not be decoded in one pass
+	 */
+	public static Bitmap decodeSampledBitmapFromStream(InputStream in, int reqWidth, int reqHeight, boolean strictInSampleSize,
+			BitmapPool pool, BitmapFactory.Options bounds) {
+		try {
 			// First decode with inJustDecodeBounds=true to check dimensions
 			final BitmapFactory.Options options = new BitmapFactory.Options();
 			options.inJustDecodeBounds = true;
-			BitmapFactory.decodeFile(filename, options);
+			in.mark(HEADER_MARK_LIMIT);
+			BitmapFactory.decodeStream(in, null, options);
+			// Fails if the header was larger than the mark limit
+			in.reset();
+			if (bounds != null) {
+				bounds.outWidth = options.outWidth;
+				bounds.outHeight = options.outHeight;
+				bounds.outMimeType = options.outMimeType;
+			}
 
 			// Calculate inSampleSize
 			options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight, strictInSampleSize);
 
-			// Decode bitmap with inSampleSize set
-			options.inJustDecodeBounds = false;
+			// Wait until the decoded bitmap fits the memory budget. The decode
+			// reads the rest of the download, it has an allowance of its own
+			// so that decodes of cached files don't wait on the network.
+			final DecodeGovernor governor = DecodeGovernor.getStreamInstance();
+			final long bytes = DecodeGovernor.estimateBytes(options);
+			if (!governor.acquire(bytes)) {
+				// Interrupted, the interrupt status stays set so that callers
+				// can tell this from a bad image
+				return null;
+			}
 
-			return BitmapFactory.decodeFile(filename, options);
+			try {
+				// Decode bitmap with inSampleSize set. A rejected pool bitmap
+				// can't be retried, the stream is consumed by then.
+				options.inJustDecodeBounds = false;
+				addInBitmapOptions(options, pool);
+				return BitmapFactory.decodeStream(in, null, options);
+			} finally {
+				governor.release(bytes);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			return null;
 		} catch (OutOfMemoryError e) {
 			e.printStackTrace();
-			System.runFinalizersOnExit(true);
-			System.exit(0);
+			ImageCache.onOutOfMemory();
 			return null;
 		}
 	}
 
+	/**
+	 * Decode and sample down a bitmap from a byte array to the requested width
+	 * and height.
+	 * 
+	 * @param data
+	 *            The encoded image
+	 * @param reqWidth
+	 *            The requested width of the resulting bitmap
+	 * @param reqHeight
+	 *            The requested height of the resulting bitmap
+	 * @return A bitmap sampled down from the original with the same aspect
+	 *         ratio and dimensions that are equal to or greater than the
+	 *         requested width and height
+	 */
+	public static Bitmap decodeSampledBitmapFromByteArray(byte[] data, int reqWidth, int reqHeight, boolean strictInSampleSize) {
+		return decodeSampledBitmapFromByteArray(data, reqWidth, reqHeight, strictInSampleSize, null);
+	}
+
+	/**
+	 * Decode and sample down a bitmap from a byte array, reusing a bitmap from
+	 * the pool if a compatible one is available.
+	 * 
+	 * @param data
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @param strictInSampleSize
+	 * @param pool
+	 *            The pool to take a bitmap from, or null
+	 * @return
+	 */
+	public static Bitmap decodeSampledBitmapFromByteArray(byte[] data, int reqWidth, int reqHeight, boolean strictInSampleSize,
+			BitmapPool pool) {
+		try {
+			// First decode with inJustDecodeBounds=true to check dimensions
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+			// Calculate inSampleSize
+			options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight, strictInSampleSize);
+
+			// Wait until the decoded bitmap fits the memory budget
+			final DecodeGovernor governor = DecodeGovernor.getInstance();
+			final long bytes = DecodeGovernor.estimateBytes(options);
+			if (!governor.acquire(bytes)) {
+				// Interrupted, the interrupt status stays set so that callers
+				// can tell this from a bad image
+				return null;
+			}
+
+			try {
+				// Decode bitmap with inSampleSize set
+				options.inJustDecodeBounds = false;
+				addInBitmapOptions(options, pool);
+				try {
+					return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+				} catch (IllegalArgumentException e) {
+					if (clearInBitmap(options)) {
+						return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+					}
+					throw e;
+				}
+			} finally {
+				governor.release(bytes);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		} catch (OutOfMemoryError e) {
+			e.printStackTrace();
+			ImageCache.onOutOfMemory();
+			return null;
+		}
+	}
+
+	private static void closeStream(InputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Reads a file from the start again through its channel, without opening
+	 * it again.
+	 */
+	private static InputStream rewind(FileInputStream file) throws IOException {
+		file.getChannel().position(0);
+		return new BufferedInputStream(file, Utils.IO_BUFFER_SIZE);
+	}
+
+	/**
+	 * Makes a decode reuse a compatible bitmap from the pool and produce a
+	 * mutable bitmap that can be pooled later on.
+	 * 
+	 * @param options
+	 *            Options with the bounds and inSampleSize set
+	 * @param pool
+	 *            The pool, or null
+	 */
+	@SuppressLint("NewApi")
+	private static void addInBitmapOptions(BitmapFactory.Options options, BitmapPool pool) {
+		if (pool != null && BitmapPool.isSupported()) {
+			new InBitmapOptions().setInBitmap(options, pool.get(options));
+		}
+	}
+
+	/**
+	 * Drops the reused bitmap of a decode that rejected it.
+	 * 
+	 * @return true if there was one, the decode should then be retried
+	 */
+	@SuppressLint("NewApi")
+	private static boolean clearInBitmap(BitmapFactory.Options options) {
+		return BitmapPool.isSupported() && new InBitmapOptions().clearInBitmap(options);
+	}
+
 	/**
 	 * Calculate an inSampleSize for use in a {@link BitmapFactory.Options}
 	 * object when decoding bitmaps using the decode* methods from
@@ -260,21 +604,27 @@ public class ImageResizer extends ImageWorker {
 			return null;
 		}
 		// from memory
-		Bitmap bitmap = mImageCache.getBitmapFromMemCache(url);
-
-		// from disk cache
-		if (bitmap == null) {
-			String cacheFile = mImageCache.getCacheFile(url);
-			if (cacheFile != null && cacheFile.length() > 0) {
-				bitmap = processBitmapByFile(cacheFile, reqWidth, reqHeight);
-				if (bitmap == null || bitmap.getHeight() == 0) {
-					new File(cacheFile).delete();
-				}
+		Bitmap bitmap = mImageCache.getBitmapFromMemCache(url, reqWidth, reqHeight);
+		if (bitmap != null) {
+			// Kept by the caller, never reused for decoding
+			mImageCache.markEscaped(bitmap);
+			return bitmap;
+		}
+		final long startTime = SystemClock.uptimeMillis();
+
+		// from disk cache, stale entries are served too since there is no
+		// network fallback here, revalidating them is left to the download
+		if (mImageCache.isInDiskCache(url)) {
+			bitmap = processBitmapFromDiskCache(url, reqWidth, reqHeight);
+			// An interrupted decode says nothing about the file
+			if ((bitmap == null || bitmap.getHeight() == 0) && !Thread.currentThread().isInterrupted()) {
+				mImageCache.deleteCacheFile(url);
 			}
 		}
 
 		if (bitmap != null) {
-			mImageCache.addBitmapToCache(url, bitmap);
+			mImageCache.markEscaped(bitmap);
+			mImageCache.addBitmapToCache(url, reqWidth, reqHeight, bitmap, SystemClock.uptimeMillis() - startTime);
 		}
 		return bitmap;
 	}
@@ -16,8 +16,8 @@
 
 package me.onemobile.client.image;
 
-import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.Collection;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -26,9 +26,13 @@ import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LayerDrawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.widget.ImageView;
 
 /**
@@ -39,6 +43,9 @@ import android.widget.ImageView;
 public abstract class ImageWorker {
     private static final int FADE_IN_TIME = 200;
 
+    // Delivers the images of shared loads to the tasks that joined them
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
     protected ImageCache mImageCache;
     private Bitmap mLoadingBitmap;
     private boolean mFadeInBitmap = true;
@@ -68,23 +75,27 @@ public abstract class ImageWorker {
     	}
         Bitmap bitmap = null;
         if (mImageCache != null) {
-            bitmap = mImageCache.getBitmapFromMemCache(uri);
+            bitmap = mImageCache.getBitmapFromMemCache(uri, reqWidth, reqHeight);
         }
 
         if (bitmap != null) {
             // Bitmap found in memory cache
         	if (callback != null) {
 				if (!doCallbackOnly) {
-					imageView.setImageBitmap(bitmap);
+					setImageBitmap(imageView, bitmap, false);
+				}
+				if (mImageCache != null) {
+					// The callback may keep it, never reuse it for decoding
+					mImageCache.markEscaped(bitmap);
 				}
 				callback.onFinished(imageView, bitmap);
 			} else {
-				imageView.setImageBitmap(bitmap);
+				setImageBitmap(imageView, bitmap, false);
 			}
 		} else if (cancelPotentialWork(data, imageView)) {
 			BitmapWorkerTask task = new BitmapWorkerTask(imageView, reqWidth, reqHeight);
 			AsyncDrawable asyncDrawable = new AsyncDrawable(mContext.getResources(), mLoadingBitmap, task);
-			imageView.setImageDrawable(asyncDrawable);
+			setImageDrawable(imageView, asyncDrawable);
 			try {
 				task.execute(data);
 			} catch (Exception e) {
@@ -153,7 +164,7 @@ public abstract class ImageWorker {
     public static void cancelWork(ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
         if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
+            bitmapWorkerTask.cancelLoad();
         }
     }
 
@@ -169,7 +180,7 @@ public abstract class ImageWorker {
         if (bitmapWorkerTask != null) {
             final Object bitmapData = bitmapWorkerTask.data;
             if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
+                bitmapWorkerTask.cancelLoad();
             } else {
                 // The same work is already in progress.
                 return false;
@@ -195,9 +206,11 @@ public abstract class ImageWorker {
     }
 
     /**
-     * The actual AsyncTask that will asynchronously process the image.
+     * The actual AsyncTask that will asynchronously process the image. Tasks for the same image and
+     * size share one load through {@link InFlightLoads}.
      */
-    private class BitmapWorkerTask extends CustomAsyncTask<Object, Void, Bitmap> {
+    private class BitmapWorkerTask extends CustomAsyncTask<Object, Void, Bitmap> implements InFlightLoads.Waiter,
+            InFlightLoads.Load {
         private Object data;
         private final WeakReference<ImageView> imageViewReference;
         int reqWidth;
@@ -215,14 +228,11 @@ public abstract class ImageWorker {
 			final String dataString = String.valueOf(data);
 
 			Uri imgUri = Uri.parse(dataString);
-			if (imgUri != null && imgUri.getScheme() != null && imgUri.getScheme().equalsIgnoreCase("pkg")) {
+			if (AppIconCache.isIconUri(imgUri)) {
 				return true;
 			} else {
 				if (mImageCache != null && !isCancelled() && getAttachedImageView() != null && !mExitTasksEarly) {
-					String cacheFile = mImageCache.getCacheFile(dataString);
-					if (cacheFile != null && cacheFile.length() > 0) {
-						return new File(cacheFile).exists();
-					}
+					return mImageCache.isInDiskCache(dataString);
 				}
 			}
 			return false;
@@ -234,62 +244,105 @@ public abstract class ImageWorker {
         @Override
 		protected Bitmap doInBackground(Object... params) {
 			try {
-//				data = params[0];
-				final String dataString = String.valueOf(data);
-				Bitmap bitmap = null;
+				final String key = InFlightLoads.getKey(String.valueOf(data), reqWidth, reqHeight);
+				return InFlightLoads.load(key, this, this);
+			} catch (Exception e) {
+				return null;
+			}
+		}
 
-				Uri imgUri = Uri.parse(dataString);
-				if (imgUri != null && imgUri.getScheme() != null && imgUri.getScheme().equalsIgnoreCase("pkg")) {
-					bitmap = getApplicationIcon(mContext, imgUri.getHost());
-				} else {
+        /**
+         * Cancels the task. The thread is not interrupted, the load stops at its next check of
+         * {@link InFlightLoads.Flight#isCancelled()} unless other tasks still wait for it.
+         */
+        void cancelLoad() {
+            cancel(false);
+        }
 
-					// If the image cache is available and this task has not
-					// been cancelled by another
-					// thread and the ImageView that was originally bound to
-					// this task is still bound back
-					// to this task and our "exit early" flag is not set then
-					// try and fetch the bitmap from
-					// the cache
-					if (mImageCache != null && !isCancelled() && getAttachedImageView() != null && !mExitTasksEarly) {
-						String cacheFile = mImageCache.getCacheFile(dataString);
-						if (cacheFile != null && cacheFile.length() > 0) {
-							bitmap = processBitmapByFile(cacheFile, reqWidth, reqHeight);
-							if (bitmap == null) {
-								mImageCache.deleteCacheFile(dataString);
-							}
-						}
-					}
+        /**
+         * Checks that this task has not been cancelled by another thread, the ImageView that was
+         * originally bound to this task is still bound back to this task and our "exit early" flag
+         * is not set.
+         */
+        @Override
+        public boolean isWaiting() {
+            return !isCancelled() && getAttachedImageView() != null && !mExitTasksEarly;
+        }
+
+        /**
+         * Loads the image for this task and the tasks waiting for it, the load goes on while any
+         * of them still wants the image.
+         */
+        @Override
+		public Bitmap load(InFlightLoads.Flight flight) {
+			final String dataString = String.valueOf(data);
+			Bitmap bitmap = null;
+			final long startTime = SystemClock.uptimeMillis();
+
+			Uri imgUri = Uri.parse(dataString);
+			final boolean isIcon = AppIconCache.isIconUri(imgUri);
+			if (isIcon) {
+				bitmap = AppIconCache.getInstance(mContext).getIcon(imgUri.getHost(), reqWidth, reqHeight);
+			} else {
 
-					// If the bitmap was not found in the cache and this task
-					// has not been cancelled by
-					// another thread and the ImageView that was originally
-					// bound to this task is still
-					// bound back to this task and our "exit early" flag is not
-					// set, then call the main
-					// process method (as implemented by a subclass)
-					if (bitmap == null && !isCancelled() && getAttachedImageView() != null && !mExitTasksEarly) {
-						bitmap = processBitmap(params[0], reqWidth, reqHeight);
+				// If the image cache is available and every task waiting for
+				// this load has not been cancelled, then try and fetch the
+				// bitmap from the cache
+				if (mImageCache != null && !flight.isCancelled()) {
+					if (mImageCache.isInDiskCache(dataString) && isDiskCacheEntryFresh(dataString)) {
+						bitmap = processBitmapFromDiskCache(dataString, reqWidth, reqHeight);
+						// An interrupted decode says nothing about the file
+						if (bitmap == null && !Thread.currentThread().isInterrupted()) {
+							mImageCache.deleteCacheFile(dataString);
+						}
 					}
 				}
 
-				// If the bitmap was processed and the image cache is available,
-				// then add the processed
-				// bitmap to the cache for future use. Note we don't check if
-				// the task was cancelled
-				// here, if it was, and the thread is still running, we may as
-				// well add the processed
-				// bitmap to our cache as it might be used again in the future
-				if (bitmap != null && mImageCache != null) {
-					mImageCache.addBitmapToCache(dataString, bitmap);
+				// If the bitmap was not found in the cache and a task still
+				// waits for it, then call the main process method (as
+				// implemented by a subclass)
+				if (bitmap == null && !flight.isCancelled()) {
+					bitmap = processBitmap(data, reqWidth, reqHeight);
 				}
+			}
 
-				return bitmap;
-
-			} catch (Exception e) {
-				return null;
+			// If the bitmap was processed and the image cache is available,
+			// then add the processed
+			// bitmap to the cache for future use. Note we don't check if
+			// the task was cancelled
+			// here, if it was, and the thread is still running, we may as
+			// well add the processed
+			// bitmap to our cache as it might be used again in the future
+			if (bitmap != null && mImageCache != null) {
+				// The load time lets the memory cache keep bitmaps that
+				// were slow to get, like downloads, over disk decodes
+				final long loadTime = SystemClock.uptimeMillis() - startTime;
+				if (isIcon) {
+					// Icons are kept on disk by AppIconCache
+					mImageCache.addBitmapToMemCache(dataString, reqWidth, reqHeight, bitmap, loadTime);
+				} else {
+					mImageCache.addBitmapToCache(dataString, reqWidth, reqHeight, bitmap, loadTime);
+				}
 			}
+
+			return bitmap;
 		}
 
+        /**
+         * Receives the image of a load started by another task, on the thread that ran it.
+         */
+        @Override
+        public void onLoaded(final Bitmap bitmap) {
+            if (bitmap != null) {
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPostExecute(bitmap);
+                    }
+                });
+            }
+        }
+
         /**
          * Once the image is processed, associates it to the imageView
          */
@@ -304,11 +357,15 @@ public abstract class ImageWorker {
             if (bitmap != null && imageView != null) {
             	if (callback != null) {
 					if (!doCallbackOnly) {
-						setImageBitmap(imageView, bitmap);
+						setImageBitmap(imageView, bitmap, mFadeInBitmap);
+					}
+					if (mImageCache != null) {
+						// The callback may keep it, never reuse it for decoding
+						mImageCache.markEscaped(bitmap);
 					}
 					callback.onFinished(imageView, bitmap);
 				} else {
-					setImageBitmap(imageView, bitmap);
+					setImageBitmap(imageView, bitmap, mFadeInBitmap);
 				}
             }
         }
@@ -353,30 +410,142 @@ public abstract class ImageWorker {
 
     /**
      * Called when the processing is complete and the final bitmap should be set on the ImageView.
+     * The bitmap is leased from the cache until the view shows something else.
      *
      * @param imageView
      * @param bitmap
+     * @param fadeIn
      */
-    private void setImageBitmap(ImageView imageView, Bitmap bitmap) {
-        if (mFadeInBitmap) {
+    private void setImageBitmap(ImageView imageView, Bitmap bitmap, boolean fadeIn) {
+        final CountingBitmapDrawable drawable =
+                new CountingBitmapDrawable(mContext.getResources(), bitmap, mImageCache);
+        if (fadeIn) {
             // Transition drawable with a transparent drwabale and the final bitmap
             final TransitionDrawable td =
                     new TransitionDrawable(new Drawable[] {
                             new ColorDrawable(android.R.color.transparent),
-                            new BitmapDrawable(mContext.getResources(), bitmap)
+                            drawable
                     });
             // Set background to loading bitmap,It's stupid
            /* imageView.setBackgroundDrawable(
                     new BitmapDrawable(mContext.getResources(), mLoadingBitmap));*/
 
-            imageView.setImageDrawable(td);
+            setImageDrawable(imageView, td);
             td.startTransition(FADE_IN_TIME);
         } else {
-            imageView.setImageBitmap(bitmap);
+            setImageDrawable(imageView, drawable);
+        }
+    }
+
+    /**
+     * Sets a drawable on the ImageView, leasing the bitmaps it shows and releasing the ones of the
+     * drawable it replaces.
+     *
+     * @param imageView
+     * @param drawable
+     */
+    private static void setImageDrawable(ImageView imageView, Drawable drawable) {
+        final Drawable previous = imageView.getDrawable();
+        imageView.setImageDrawable(drawable);
+        if (previous != drawable) {
+            // Acquire first so that a bitmap shown by both is never unleased in between
+            notifyDisplayed(drawable, true);
+            notifyDisplayed(previous, false);
+        }
+    }
+
+    private static void notifyDisplayed(Drawable drawable, boolean isDisplayed) {
+        if (drawable instanceof CountingBitmapDrawable) {
+            ((CountingBitmapDrawable) drawable).setIsDisplayed(isDisplayed);
+        } else if (drawable instanceof LayerDrawable) {
+            final LayerDrawable layerDrawable = (LayerDrawable) drawable;
+            for (int i = 0; i < layerDrawable.getNumberOfLayers(); i++) {
+                notifyDisplayed(layerDrawable.getDrawable(i), isDisplayed);
+            }
         }
     }
 
     protected abstract Bitmap processBitmapByFile(String file, int reqWidth, int reqHeight);
+
+    /**
+     * Checks if a disk cache entry can be used without asking its source again. Stale entries are
+     * handed to {@link #processBitmap(Object, int, int)}, which may revalidate them. Called on a
+     * background thread.
+     *
+     * @param key The cache key of the image
+     * @return true by default
+     */
+    protected boolean isDiskCacheEntryFresh(String key) {
+        return true;
+    }
+
+    /**
+     * Decodes an image held in memory, such as one packed into the disk cache. Subclasses should
+     * override this to sample the image down like {@link #processBitmapByFile(String, int, int)}.
+     *
+     * @param data The encoded image
+     * @return The decoded bitmap
+     */
+    protected Bitmap processBitmapByData(byte[] data, int reqWidth, int reqHeight) {
+        return BitmapFactory.decodeByteArray(data, 0, data.length);
+    }
+
+    /**
+     * Decodes an image from the disk cache, preferring its downscaled variant for the requested
+     * size, see {@link ImageCache#addVariantToCache(String, int, int)}. Decoding the original
+     * queues storing the variant.
+     *
+     * @param key The cache key of the image
+     * @return The decoded bitmap or null if it is not cached or can't be decoded
+     */
+    protected Bitmap processBitmapFromDiskCache(String key, int reqWidth, int reqHeight) {
+        if (mImageCache == null) {
+            return null;
+        }
+        final String variantKey = ImageCache.getVariantKey(key, reqWidth, reqHeight);
+        if (variantKey != null && mImageCache.isInDiskCache(variantKey)) {
+            final Bitmap variant = decodeFromDiskCache(variantKey, reqWidth, reqHeight);
+            if (variant != null) {
+                mImageCache.recordDiskHit(true);
+                return variant;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                // Cancelled while waiting to decode, the variant is fine
+                return null;
+            }
+            mImageCache.deleteCacheFile(variantKey);
+        }
+        final Bitmap bitmap = decodeFromDiskCache(key, reqWidth, reqHeight);
+        if (bitmap != null) {
+            mImageCache.recordDiskHit(false);
+            mImageCache.addVariantToCache(key, reqWidth, reqHeight);
+        }
+        return bitmap;
+    }
+
+    private Bitmap decodeFromDiskCache(String key, int reqWidth, int reqHeight) {
+        // Straight from memory if the encoded cache is enabled
+        final byte[] encoded = mImageCache.getEncodedData(key);
+        if (encoded != null) {
+            final Bitmap bitmap = processBitmapByData(encoded, reqWidth, reqHeight);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        Bitmap bitmap = null;
+        final String cacheFile = mImageCache.getCacheFile(key);
+        if (cacheFile != null && cacheFile.length() > 0) {
+            bitmap = processBitmapByFile(cacheFile, reqWidth, reqHeight);
+        }
+        if (bitmap == null) {
+            // Packed meanwhile, or small enough to be packed in the first place
+            final byte[] data = mImageCache.getPackedData(key);
+            if (data != null) {
+                bitmap = processBitmapByData(data, reqWidth, reqHeight);
+            }
+        }
+        return bitmap;
+    }
     
     
     /////////////////////////////////////////////////////////////////////////
@@ -401,8 +570,23 @@ public abstract class ImageWorker {
 		this.doCallbackOnly = callbackOnly;
 	}
 
-	
-	
+	/**
+	 * Loads the icons of installed packages in one pass on a background
+	 * thread, so that later {@link #loadImage} calls for their
+	 * {@link AppIconCache#getUri(String)} URIs hit the memory cache.
+	 * 
+	 * @param packageNames
+	 * @param reqWidth
+	 * @param reqHeight
+	 */
+	public void preloadAppIcons(Collection<String> packageNames, int reqWidth, int reqHeight) {
+		AppIconCache.getInstance(mContext).preload(packageNames, reqWidth, reqHeight, mImageCache);
+	}
+
+	/**
+	 * Loads the full size icon of a package without caching it, see
+	 * {@link AppIconCache}.
+	 */
 	public static Bitmap getApplicationIcon(Context ctx, String pkg) {
 		try {
 			Drawable d = ctx.getPackageManager().getApplicationIcon(pkg);
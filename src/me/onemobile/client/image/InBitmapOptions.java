@@ -0,0 +1,22 @@
+package me.onemobile.client.image;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+public class InBitmapOptions {
+
+	@TargetApi(11)
+	public void setInBitmap(BitmapFactory.Options options, Bitmap inBitmap) {
+		// Mutable so that the decoded bitmap can be pooled in turn
+		options.inMutable = true;
+		options.inBitmap = inBitmap;
+	}
+
+	@TargetApi(11)
+	public boolean clearInBitmap(BitmapFactory.Options options) {
+		final boolean hadInBitmap = options.inBitmap != null;
+		options.inBitmap = null;
+		return hadInBitmap;
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.onemobile.client.image;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.graphics.Bitmap;
+
+/**
+ * The image loads running in the process, keyed by image and target size, so
+ * that requests for an image that is already being loaded share that load
+ * instead of fetching and decoding it again. The first request runs the load
+ * on its own thread, later ones are handed its result when it is done and
+ * don't hold a thread meanwhile. A load is cancelled once every request
+ * waiting for it has lost interest.
+ */
+public class InFlightLoads {
+	private static final HashMap<String, Flight> sFlights = new HashMap<String, Flight>();
+	private static int sLoadCount;
+	private static int sCoalescedCount;
+
+	/**
+	 * A request for an image.
+	 */
+	public interface Waiter {
+		/**
+		 * @return false once the requester no longer needs the image
+		 */
+		boolean isWaiting();
+
+		/**
+		 * Called on the thread that ran the load once it is done, if the
+		 * request joined a load started by another request.
+		 * 
+		 * @param bitmap
+		 *            The image, or null if the load failed or was cancelled
+		 */
+		void onLoaded(Bitmap bitmap);
+	}
+
+	/**
+	 * The work that produces an image, run by the first request.
+	 */
+	public interface Load {
+		/**
+		 * @param flight
+		 *            Should be checked with {@link Flight#isCancelled()}
+		 *            before each expensive step
+		 * @return The image, or null
+		 */
+		Bitmap load(Flight flight);
+	}
+
+	/**
+	 * A request that blocks its thread until the image is loaded.
+	 */
+	private static final class BlockingWaiter implements Waiter {
+		private boolean mDone;
+		private boolean mInterrupted;
+		private Bitmap mResult;
+
+		@Override
+		public synchronized boolean isWaiting() {
+			return !mInterrupted;
+		}
+
+		@Override
+		public synchronized void onLoaded(Bitmap bitmap) {
+			mResult = bitmap;
+			mDone = true;
+			notifyAll();
+		}
+
+		private synchronized Bitmap await() {
+			while (!mDone) {
+				try {
+					wait();
+				} catch (final InterruptedException e) {
+					mInterrupted = true;
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+			return mResult;
+		}
+	}
+
+	/**
+	 * A running load and the requests waiting for it.
+	 */
+	public static final class Flight {
+		private final ArrayList<Waiter> mWaiters = new ArrayList<Waiter>(2);
+		private final Waiter mLeader;
+		private boolean mCancelled;
+		private boolean mDone;
+
+		private Flight(Waiter leader) {
+			mLeader = leader;
+			mWaiters.add(leader);
+		}
+
+		/**
+		 * @return true if no request waits for the load any more, the load
+		 *         should stop then
+		 */
+		public synchronized boolean isCancelled() {
+			if (!mCancelled) {
+				final Iterator<Waiter> iterator = mWaiters.iterator();
+				while (iterator.hasNext()) {
+					if (!iterator.next().isWaiting()) {
+						iterator.remove();
+					}
+				}
+				mCancelled = mWaiters.isEmpty();
+			}
+			return mCancelled;
+		}
+
+		private synchronized boolean join(Waiter waiter) {
+			if (mDone || isCancelled()) {
+				return false;
+			}
+			mWaiters.add(waiter);
+			return true;
+		}
+
+		private void finish(Bitmap result) {
+			final ArrayList<Waiter> waiters;
+			synchronized (this) {
+				mDone = true;
+				waiters = new ArrayList<Waiter>(mWaiters);
+				mWaiters.clear();
+			}
+			// Outside the lock, waiters may call back into the cache
+			for (final Waiter waiter : waiters) {
+				if (waiter != mLeader) {
+					waiter.onLoaded(result);
+				}
+			}
+		}
+	}
+
+	private InFlightLoads() {
+	}
+
+	/**
+	 * @param data
+	 *            Unique identifier of the image
+	 * @param reqWidth
+	 * @param reqHeight
+	 * @return The key of loads of an image at a size
+	 */
+	public static String getKey(String data, int reqWidth, int reqHeight) {
+		return data + '@' + reqWidth + 'x' + reqHeight;
+	}
+
+	/**
+	 * Runs a load, or joins the same load running on another thread.
+	 * 
+	 * @param key
+	 *            See {@link #getKey(String, int, int)}
+	 * @param waiter
+	 *            The request, null for one that blocks until the load is
+	 *            done
+	 * @param load
+	 * @return The image, or null if the load failed or the request was
+	 *         cancelled. A request that joined another load gets null and
+	 *         is handed the image through {@link Waiter#onLoaded(Bitmap)}.
+	 */
+	public static Bitmap load(String key, Waiter waiter, Load load) {
+		final BlockingWaiter blocking = waiter == null ? new BlockingWaiter() : null;
+		if (blocking != null) {
+			waiter = blocking;
+		}
+		final Flight flight;
+		synchronized (sFlights) {
+			final Flight running = sFlights.get(key);
+			if (running != null && running.join(waiter)) {
+				sCoalescedCount++;
+				flight = null;
+			} else {
+				// A cancelled load still winding down is replaced
+				flight = new Flight(waiter);
+				sFlights.put(key, flight);
+				sLoadCount++;
+			}
+		}
+		if (flight == null) {
+			return blocking != null ? blocking.await() : null;
+		}
+
+		Bitmap result = null;
+		try {
+			result = load.load(flight);
+		} finally {
+			synchronized (sFlights) {
+				if (sFlights.get(key) == flight) {
+					sFlights.remove(key);
+				}
+			}
+			flight.finish(result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return The number of loads running now
+	 */
+	public static int getInFlightCount() {
+		synchronized (sFlights) {
+			return sFlights.size();
+		}
+	}
+
+	/**
+	 * @return The number of loads started so far
+	 */
+	public static int getLoadCount() {
+		synchronized (sFlights) {
+			return sLoadCount;
+		}
+	}
+
+	/**
+	 * @return The number of requests that waited for a load started by
+	 *         another request instead of loading the image themselves
+	 */
+	public static int getCoalescedCount() {
+		synchronized (sFlights) {
+			return sCoalescedCount;
+		}
+	}
+}
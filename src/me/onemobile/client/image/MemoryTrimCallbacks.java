@@ -0,0 +1,50 @@
+package me.onemobile.client.image;
+
+import java.lang.ref.WeakReference;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+public class MemoryTrimCallbacks {
+
+	/**
+	 * Registers a cache for memory trim callbacks. The callbacks only keep a
+	 * weak reference to the cache and unregister themselves once the cache
+	 * has been collected.
+	 * 
+	 * @return The callbacks to pass to {@link #unregister(Context, Object)}
+	 */
+	@TargetApi(14)
+	public Object register(final Context context, ImageCache cache) {
+		final WeakReference<ImageCache> cacheReference = new WeakReference<ImageCache>(cache);
+		final ComponentCallbacks2 callbacks = new ComponentCallbacks2() {
+			@Override
+			public void onTrimMemory(int level) {
+				final ImageCache imageCache = cacheReference.get();
+				if (imageCache != null) {
+					imageCache.trimMemory(level);
+				} else {
+					context.unregisterComponentCallbacks(this);
+				}
+			}
+
+			@Override
+			public void onLowMemory() {
+				onTrimMemory(TRIM_MEMORY_COMPLETE);
+			}
+
+			@Override
+			public void onConfigurationChanged(Configuration newConfig) {
+			}
+		};
+		context.registerComponentCallbacks(callbacks);
+		return callbacks;
+	}
+
+	@TargetApi(14)
+	public void unregister(Context context, Object callbacks) {
+		context.unregisterComponentCallbacks((ComponentCallbacks2) callbacks);
+	}
+}
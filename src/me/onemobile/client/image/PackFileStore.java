@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.onemobile.client.image;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A log-structured store for small cache entries. Entries are appended to
+ * segment files and read back with positional reads, so a hit costs neither
+ * an open nor a file system block of its own. The store keeps no index, the
+ * {@link DiskLruCache} journal records the {@link Location} of every packed
+ * entry. Segments that are mostly dead are compacted by the cache, which
+ * copies the live entries to the active segment and then deletes the old
+ * one.
+ */
+class PackFileStore {
+	static final String PACK_DIR = "packs";
+	private static final String SEGMENT_PREFIX = "seg_";
+	private static final String SEGMENT_SUFFIX = ".pack";
+	private static final long MAX_SEGMENT_SIZE = 1024 * 1024 * 4; // 4MB
+
+	/** A segment is compacted once less than this share of it is alive. */
+	private static final float MIN_LIVE_FRACTION = 0.5f;
+
+	private final File mDirectory;
+	private final Map<Integer, Segment> mSegments = new HashMap<Integer, Segment>();
+	private int mActiveSegment = -1;
+
+	/**
+	 * The place of an entry in the store.
+	 */
+	static final class Location {
+		final int segment;
+		final long offset;
+		final int length;
+
+		Location(int segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static final class Segment {
+		final File file;
+		FileChannel channel;
+		long size;
+		long liveBytes;
+
+		Segment(File file) {
+			this.file = file;
+			this.size = file.length();
+		}
+	}
+
+	private static final FilenameFilter segmentFileFilter = new FilenameFilter() {
+		@Override
+		public boolean accept(File dir, String filename) {
+			return filename.startsWith(SEGMENT_PREFIX) && filename.endsWith(SEGMENT_SUFFIX);
+		}
+	};
+
+	/**
+	 * @param cacheDir
+	 *            The cache directory, segments are kept in a sub-directory of
+	 *            it
+	 */
+	PackFileStore(File cacheDir) {
+		mDirectory = new File(cacheDir, PACK_DIR);
+		final File[] files = mDirectory.listFiles(segmentFileFilter);
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				final String name = files[i].getName();
+				try {
+					final int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+					mSegments.put(number, new Segment(files[i]));
+					mActiveSegment = Math.max(mActiveSegment, number);
+				} catch (final NumberFormatException e) {
+					files[i].delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends an entry to the active segment.
+	 * 
+	 * @param data
+	 * @param length
+	 * @return The location of the entry
+	 * @throws IOException
+	 */
+	synchronized Location append(byte[] data, int length) throws IOException {
+		Segment segment = mSegments.get(mActiveSegment);
+		if (segment == null || segment.size + length > MAX_SEGMENT_SIZE) {
+			segment = rollSegment();
+		}
+		final FileChannel channel = channel(segment);
+		final long offset = segment.size;
+		final ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+		long position = offset;
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		segment.size = position;
+		segment.liveBytes += length;
+		return new Location(mActiveSegment, offset, length);
+	}
+
+	/**
+	 * Reads an entry.
+	 * 
+	 * @param location
+	 * @return The data, or null if the segment is gone or can't be read
+	 */
+	byte[] read(Location location) {
+		final FileChannel channel;
+		synchronized (this) {
+			final Segment segment = mSegments.get(location.segment);
+			if (segment == null) {
+				return null;
+			}
+			try {
+				channel = channel(segment);
+			} catch (final IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+		// Positional reads don't move the channel position and can run
+		// concurrently
+		final byte[] data = new byte[location.length];
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		try {
+			long position = location.offset;
+			while (buffer.hasRemaining()) {
+				final int read = channel.read(buffer, position);
+				if (read == -1) {
+					return null;
+				}
+				position += read;
+			}
+		} catch (final IOException e) {
+			// The segment was compacted away meanwhile
+			return null;
+		}
+		return data;
+	}
+
+	/**
+	 * Counts an entry found in the journal as alive.
+	 */
+	synchronized void retain(Location location) {
+		final Segment segment = mSegments.get(location.segment);
+		if (segment != null) {
+			segment.liveBytes += location.length;
+		}
+	}
+
+	/**
+	 * Marks an entry as dead. Its space is reclaimed when its segment is
+	 * compacted.
+	 */
+	synchronized void release(Location location) {
+		final Segment segment = mSegments.get(location.segment);
+		if (segment != null) {
+			segment.liveBytes -= location.length;
+		}
+	}
+
+	/**
+	 * @return The segments, other than the active one, that are worth
+	 *         compacting
+	 */
+	synchronized List<Integer> getSegmentsToCompact() {
+		final List<Integer> segments = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Segment> entry : mSegments.entrySet()) {
+			final Segment segment = entry.getValue();
+			if (entry.getKey() != mActiveSegment && segment.liveBytes < segment.size * MIN_LIVE_FRACTION) {
+				segments.add(entry.getKey());
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * Deletes a segment once its live entries have been moved.
+	 */
+	synchronized void deleteSegment(int number) {
+		final Segment segment = mSegments.remove(number);
+		if (segment != null) {
+			closeChannel(segment);
+			segment.file.delete();
+		}
+	}
+
+	/**
+	 * Deletes all segments.
+	 */
+	synchronized void clear() {
+		for (Segment segment : mSegments.values()) {
+			closeChannel(segment);
+			segment.file.delete();
+		}
+		mSegments.clear();
+		mActiveSegment = -1;
+	}
+
+	/**
+	 * Closes the open segment files.
+	 */
+	synchronized void close() {
+		for (Segment segment : mSegments.values()) {
+			closeChannel(segment);
+		}
+	}
+
+	private Segment rollSegment() {
+		mActiveSegment++;
+		mDirectory.mkdirs();
+		final Segment segment = new Segment(new File(mDirectory, SEGMENT_PREFIX + mActiveSegment + SEGMENT_SUFFIX));
+		mSegments.put(mActiveSegment, segment);
+		return segment;
+	}
+
+	private static FileChannel channel(Segment segment) throws IOException {
+		// A reader interrupted during a read closes the channel for everyone
+		if (segment.channel == null || !segment.channel.isOpen()) {
+			segment.channel = new RandomAccessFile(segment.file, "rw").getChannel();
+		}
+		return segment.channel;
+	}
+
+	private static void closeChannel(Segment segment) {
+		if (segment.channel != null) {
+			try {
+				segment.channel.close();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+			segment.channel = null;
+		}
+	}
+}
@@ -0,0 +1,530 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.onemobile.client.image;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache like {@link android.support.v4.util.LruCache} split into segments
+ * by key hash, each with its own lock and an equal share of the size budget,
+ * so that writers to different segments do not contend.
+ * <p>
+ * Lookups go through a {@link ConcurrentHashMap} and never block: the entry
+ * is stamped with the access time and only moved in its segment's LRU order
+ * if the segment lock is free right away. Eviction is LRU per segment, the
+ * total size is kept under {@link #maxSize()} by evicting the globally least
+ * recently used entries. An entry larger than its segment's share is kept as
+ * long as the total budget allows it.
+ * <p>
+ * With {@link EvictionPolicy#GREEDY_DUAL_SIZE} entries are instead weighed by
+ * the cost of reloading them, see {@link #put(Object, Object, long)}.
+ * <p>
+ * {@link #entryRemoved(boolean, Object, Object, Object)} is called without
+ * any lock held.
+ */
+public class StripedLruCache<K, V> {
+	/** Default number of segments. */
+	public static final int DEFAULT_CONCURRENCY_LEVEL = 4;
+
+	/**
+	 * How the entry to evict is chosen.
+	 */
+	public enum EvictionPolicy {
+		/** The least recently used entry. */
+		LRU,
+
+		/**
+		 * GreedyDual-Size: every entry has a priority of the cache's inflation
+		 * value plus its reload cost divided by its size, renewed on every
+		 * access. The entry with the lowest priority is evicted and its
+		 * priority becomes the new inflation value, so that entries that are
+		 * cheap to reload per byte go first and unused entries age out.
+		 */
+		GREEDY_DUAL_SIZE
+	}
+
+	private final ConcurrentHashMap<K, Entry<K, V>> mMap;
+	private final Segment<K, V>[] mSegments;
+
+	/**
+	 * The GreedyDual-Size inflation value, the highest priority evicted. One
+	 * value for all segments, since eviction compares priorities across
+	 * segments.
+	 */
+	private volatile double mInflation;
+	private final int mSegmentMask;
+	private final int mMaxSize;
+	private final int mSegmentMaxSize;
+	private final EvictionPolicy mPolicy;
+	private final Comparator<Entry<?, ?>> mEvictionOrder;
+
+	private final AtomicInteger mSize = new AtomicInteger();
+	private final AtomicLong mClock = new AtomicLong();
+	private final AtomicInteger mPutCount = new AtomicInteger();
+	private final AtomicInteger mEvictionCount = new AtomicInteger();
+	private final AtomicInteger mHitCount = new AtomicInteger();
+	private final AtomicInteger mMissCount = new AtomicInteger();
+
+	/**
+	 * @param maxSize
+	 *            For caches that do not override {@link #sizeOf}, this is the
+	 *            maximum number of entries in the cache. For all other caches,
+	 *            this is the maximum sum of the sizes of the entries in this
+	 *            cache.
+	 */
+	public StripedLruCache(int maxSize) {
+		this(maxSize, DEFAULT_CONCURRENCY_LEVEL);
+	}
+
+	/**
+	 * @param maxSize
+	 *            See {@link #StripedLruCache(int)}
+	 * @param concurrencyLevel
+	 *            The number of segments, rounded up to a power of two
+	 */
+	public StripedLruCache(int maxSize, int concurrencyLevel) {
+		this(maxSize, concurrencyLevel, EvictionPolicy.LRU);
+	}
+
+	/**
+	 * @param maxSize
+	 *            See {@link #StripedLruCache(int)}
+	 * @param concurrencyLevel
+	 *            The number of segments, rounded up to a power of two
+	 * @param policy
+	 *            How entries are chosen for eviction
+	 */
+	@SuppressWarnings("unchecked")
+	public StripedLruCache(int maxSize, int concurrencyLevel, EvictionPolicy policy) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		int segmentCount = 1;
+		while (segmentCount < concurrencyLevel) {
+			segmentCount <<= 1;
+		}
+		mMaxSize = maxSize;
+		mPolicy = policy;
+		mEvictionOrder = policy == EvictionPolicy.GREEDY_DUAL_SIZE ? BY_PRIORITY : BY_ACCESS_TIME;
+		mSegmentMaxSize = Math.max(1, maxSize / segmentCount);
+		mSegmentMask = segmentCount - 1;
+		mSegments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			mSegments[i] = new Segment<K, V>();
+		}
+		mMap = new ConcurrentHashMap<K, Entry<K, V>>(16, 0.75f, segmentCount);
+	}
+
+	/**
+	 * Returns the value for {@code key} if it exists in the cache. Never
+	 * blocks.
+	 */
+	public final V get(K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+		final Entry<K, V> entry = mMap.get(key);
+		if (entry == null) {
+			mMissCount.incrementAndGet();
+			return null;
+		}
+		entry.accessTime = mClock.incrementAndGet();
+		final Segment<K, V> segment = segmentFor(key);
+		if (mPolicy == EvictionPolicy.GREEDY_DUAL_SIZE) {
+			entry.priority = mInflation + entry.costPerUnit;
+		}
+		// Reordering is best effort, a busy segment just misses this access
+		if (segment.tryLock()) {
+			try {
+				segment.entries.get(key);
+			} finally {
+				segment.unlock();
+			}
+		}
+		mHitCount.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Caches {@code value} for {@code key}. The value is moved to the head of
+	 * its segment's queue.
+	 * 
+	 * @return the previous value mapped by {@code key}.
+	 */
+	public final V put(K key, V value) {
+		return put(key, value, 0);
+	}
+
+	/**
+	 * Caches {@code value} for {@code key} with the cost of loading it again
+	 * once evicted, used by {@link EvictionPolicy#GREEDY_DUAL_SIZE}.
+	 * 
+	 * @param cost
+	 *            The reload cost in any unit, for example milliseconds. Costs
+	 *            below 1 count as 1.
+	 * @return the previous value mapped by {@code key}.
+	 */
+	public final V put(K key, V value, long cost) {
+		if (key == null || value == null) {
+			throw new NullPointerException("key == null || value == null");
+		}
+		final int size = safeSizeOf(key, value);
+		final Entry<K, V> entry = new Entry<K, V>(key, value, size, (double) Math.max(cost, 1) / Math.max(size, 1),
+				mClock.incrementAndGet());
+		final Segment<K, V> segment = segmentFor(key);
+		final Entry<K, V> previous;
+		segment.lock();
+		try {
+			entry.priority = mInflation + entry.costPerUnit;
+			mPutCount.incrementAndGet();
+			previous = mMap.put(key, entry);
+			segment.entries.put(key, entry);
+			segment.size += entry.size;
+			mSize.addAndGet(entry.size);
+			if (previous != null) {
+				segment.size -= previous.size;
+				mSize.addAndGet(-previous.size);
+			}
+		} finally {
+			segment.unlock();
+		}
+
+		if (previous != null) {
+			entryRemoved(false, key, previous.value, value);
+		}
+		trimSegment(segment);
+		if (mSize.get() > mMaxSize) {
+			trimToSize(mMaxSize);
+		}
+		return previous != null ? previous.value : null;
+	}
+
+	/**
+	 * Removes the entry for {@code key} if it exists.
+	 * 
+	 * @return the previous value mapped by {@code key}.
+	 */
+	public final V remove(K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+		final Segment<K, V> segment = segmentFor(key);
+		final Entry<K, V> previous;
+		segment.lock();
+		try {
+			previous = mMap.remove(key);
+			if (previous != null) {
+				segment.entries.remove(key);
+				segment.size -= previous.size;
+				mSize.addAndGet(-previous.size);
+			}
+		} finally {
+			segment.unlock();
+		}
+
+		if (previous == null) {
+			return null;
+		}
+		entryRemoved(false, key, previous.value, null);
+		return previous.value;
+	}
+
+	/**
+	 * Evicts the least recently used entries of a segment until it is within
+	 * its share of the budget. The last entry of a segment is left to
+	 * {@link #trimToSize(int)}.
+	 */
+	private void trimSegment(Segment<K, V> segment) {
+		while (true) {
+			final Entry<K, V> eldest;
+			segment.lock();
+			try {
+				if (segment.size <= mSegmentMaxSize || segment.entries.size() <= 1) {
+					return;
+				}
+				eldest = victimLocked(segment);
+				removeLocked(segment, eldest);
+			} finally {
+				segment.unlock();
+			}
+			mEvictionCount.incrementAndGet();
+			entryRemoved(true, eldest.key, eldest.value, null);
+		}
+	}
+
+	/**
+	 * Evicts entries of the whole cache, least recently used or lowest
+	 * priority first, until the total size is at most the given size.
+	 * 
+	 * @param maxSize
+	 *            the maximum size of the cache before returning. May be -1 to
+	 *            evict even 0-sized elements.
+	 */
+	public void trimToSize(int maxSize) {
+		while (mSize.get() > maxSize) {
+			// Pick the first victim of all segments
+			Segment<K, V> oldestSegment = null;
+			Entry<K, V> oldest = null;
+			for (int i = 0; i < mSegments.length; i++) {
+				final Segment<K, V> segment = mSegments[i];
+				segment.lock();
+				try {
+					final Entry<K, V> victim = victimLocked(segment);
+					if (victim != null && (oldest == null || mEvictionOrder.compare(victim, oldest) < 0)) {
+						oldest = victim;
+						oldestSegment = segment;
+					}
+				} finally {
+					segment.unlock();
+				}
+			}
+			if (oldest == null) {
+				return;
+			}
+
+			boolean removed = false;
+			oldestSegment.lock();
+			try {
+				// It may have been removed or replaced in the meantime
+				if (mMap.get(oldest.key) == oldest) {
+					removeLocked(oldestSegment, oldest);
+					removed = true;
+				}
+			} finally {
+				oldestSegment.unlock();
+			}
+			if (removed) {
+				mEvictionCount.incrementAndGet();
+				entryRemoved(true, oldest.key, oldest.value, null);
+			}
+		}
+	}
+
+	/**
+	 * @return The entry of a segment to evict next, or null if it is empty
+	 */
+	private Entry<K, V> victimLocked(Segment<K, V> segment) {
+		Entry<K, V> victim = null;
+		// Entries are in access order, so ties go to the least recently used
+		for (Entry<K, V> entry : segment.entries.values()) {
+			if (mPolicy == EvictionPolicy.LRU) {
+				return entry;
+			}
+			if (victim == null || entry.priority < victim.priority) {
+				victim = entry;
+			}
+		}
+		return victim;
+	}
+
+	private void removeLocked(Segment<K, V> segment, Entry<K, V> entry) {
+		if (mPolicy == EvictionPolicy.GREEDY_DUAL_SIZE && entry.priority > mInflation) {
+			// Segments are locked independently, the update must not lower it
+			synchronized (mSegments) {
+				if (entry.priority > mInflation) {
+					mInflation = entry.priority;
+				}
+			}
+		}
+		mMap.remove(entry.key);
+		segment.entries.remove(entry.key);
+		segment.size -= entry.size;
+		mSize.addAndGet(-entry.size);
+	}
+
+	/**
+	 * Called for entries that have been evicted or removed. This method is
+	 * invoked when a value is evicted to make space, removed by a call to
+	 * {@link #remove}, or replaced by a call to {@link #put}. The default
+	 * implementation does nothing.
+	 * <p>
+	 * The method is called without synchronization: other threads may access
+	 * the cache while this method is executing.
+	 * 
+	 * @param evicted
+	 *            true if the entry is being removed to make space, false if
+	 *            the removal was caused by a {@link #put} or {@link #remove}.
+	 * @param newValue
+	 *            the new value for {@code key}, if it exists. If non-null,
+	 *            this removal was caused by a {@link #put}. Otherwise it was
+	 *            caused by an eviction or a {@link #remove}.
+	 */
+	protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+	}
+
+	/**
+	 * Returns the size of the entry for {@code key} and {@code value} in
+	 * user-defined units. The default implementation returns 1 so that size
+	 * is the number of entries and max size is the maximum number of entries.
+	 * <p>
+	 * An entry's size must not change while it is in the cache.
+	 */
+	protected int sizeOf(K key, V value) {
+		return 1;
+	}
+
+	private int safeSizeOf(K key, V value) {
+		final int result = sizeOf(key, value);
+		if (result < 0) {
+			throw new IllegalStateException("Negative size: " + key + "=" + value);
+		}
+		return result;
+	}
+
+	private Segment<K, V> segmentFor(K key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 20) ^ (hash >>> 12);
+		hash ^= (hash >>> 7) ^ (hash >>> 4);
+		return mSegments[hash & mSegmentMask];
+	}
+
+	/**
+	 * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+	 */
+	public final void evictAll() {
+		trimToSize(-1); // -1 will evict 0-sized elements
+	}
+
+	/**
+	 * For caches that do not override {@link #sizeOf}, this returns the
+	 * number of entries in the cache. For all other caches, this returns the
+	 * sum of the sizes of the entries in this cache.
+	 */
+	public final int size() {
+		return mSize.get();
+	}
+
+	/**
+	 * For caches that do not override {@link #sizeOf}, this returns the
+	 * maximum number of entries in the cache. For all other caches, this
+	 * returns the maximum sum of the sizes of the entries in this cache.
+	 */
+	public final int maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * Returns the number of times {@link #get} returned a value.
+	 */
+	public final int hitCount() {
+		return mHitCount.get();
+	}
+
+	/**
+	 * Returns the number of times {@link #get} returned null.
+	 */
+	public final int missCount() {
+		return mMissCount.get();
+	}
+
+	/**
+	 * Returns the number of times {@link #put} was called.
+	 */
+	public final int putCount() {
+		return mPutCount.get();
+	}
+
+	/**
+	 * Returns the number of values that have been evicted.
+	 */
+	public final int evictionCount() {
+		return mEvictionCount.get();
+	}
+
+	/**
+	 * Returns a copy of the current contents of the cache in eviction order,
+	 * for {@link EvictionPolicy#LRU} from least recently accessed to most
+	 * recently accessed.
+	 */
+	public final Map<K, V> snapshot() {
+		final List<Entry<K, V>> entries = new ArrayList<Entry<K, V>>(mMap.size());
+		for (int i = 0; i < mSegments.length; i++) {
+			final Segment<K, V> segment = mSegments[i];
+			segment.lock();
+			try {
+				entries.addAll(segment.entries.values());
+			} finally {
+				segment.unlock();
+			}
+		}
+		Collections.sort(entries, mEvictionOrder);
+		final Map<K, V> snapshot = new LinkedHashMap<K, V>(entries.size());
+		for (Entry<K, V> entry : entries) {
+			snapshot.put(entry.key, entry.value);
+		}
+		return snapshot;
+	}
+
+	@Override
+	public final String toString() {
+		final int accesses = mHitCount.get() + mMissCount.get();
+		final int hitPercent = accesses != 0 ? (100 * mHitCount.get() / accesses) : 0;
+		return String.format("StripedLruCache[maxSize=%d,segments=%d,policy=%s,hits=%d,misses=%d,hitRate=%d%%]", mMaxSize,
+				mSegments.length, mPolicy, mHitCount.get(), mMissCount.get(), hitPercent);
+	}
+
+	private static final Comparator<Entry<?, ?>> BY_ACCESS_TIME = new Comparator<Entry<?, ?>>() {
+		@Override
+		public int compare(Entry<?, ?> lhs, Entry<?, ?> rhs) {
+			return lhs.accessTime < rhs.accessTime ? -1 : (lhs.accessTime == rhs.accessTime ? 0 : 1);
+		}
+	};
+
+	private static final Comparator<Entry<?, ?>> BY_PRIORITY = new Comparator<Entry<?, ?>>() {
+		@Override
+		public int compare(Entry<?, ?> lhs, Entry<?, ?> rhs) {
+			final int result = Double.compare(lhs.priority, rhs.priority);
+			return result != 0 ? result : BY_ACCESS_TIME.compare(lhs, rhs);
+		}
+	};
+
+	private static final class Entry<K, V> {
+		final K key;
+		final V value;
+		final int size;
+		final double costPerUnit;
+		volatile long accessTime;
+		volatile double priority;
+
+		Entry(K key, V value, int size, double costPerUnit, long accessTime) {
+			this.key = key;
+			this.value = value;
+			this.size = size;
+			this.costPerUnit = costPerUnit;
+			this.accessTime = accessTime;
+		}
+	}
+
+	/**
+	 * The entries of one segment in access order, guarded by the segment
+	 * itself.
+	 */
+	@SuppressWarnings("serial")
+	private static final class Segment<K, V> extends ReentrantLock {
+		final LinkedHashMap<K, Entry<K, V>> entries = new LinkedHashMap<K, Entry<K, V>>(16, 0.75f, true);
+		int size;
+	}
+}
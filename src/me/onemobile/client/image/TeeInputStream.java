@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.onemobile.client.image;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An input stream that writes every byte read from it to an output stream,
+ * used to store a download while it is being decoded. Skipped bytes are read
+ * and written as well. Closing the stream does not close the output stream.
+ * Reading more than a maximum number of bytes fails.
+ */
+class TeeInputStream extends FilterInputStream {
+	private final OutputStream mOut;
+	private final long mMaxBytes;
+	private long mCount;
+
+	/**
+	 * @param in
+	 * @param out
+	 * @param maxBytes
+	 *            The maximum length of the stream
+	 */
+	TeeInputStream(InputStream in, OutputStream out, long maxBytes) {
+		super(in);
+		mOut = out;
+		mMaxBytes = maxBytes;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final int b = in.read();
+		if (b != -1) {
+			count(1);
+			mOut.write(b);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		final int read = in.read(buffer, offset, count);
+		if (read > 0) {
+			count(read);
+			mOut.write(buffer, offset, read);
+		}
+		return read;
+	}
+
+	private void count(int read) throws IOException {
+		mCount += read;
+		if (mCount > mMaxBytes) {
+			throw new IOException("Stream longer than " + mMaxBytes + " bytes");
+		}
+	}
+
+	@Override
+	public long skip(long count) throws IOException {
+		final byte[] buffer = new byte[(int) Math.min(count, Utils.IO_BUFFER_SIZE)];
+		long skipped = 0;
+		while (skipped < count) {
+			final int read = read(buffer, 0, (int) Math.min(count - skipped, buffer.length));
+			if (read == -1) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readlimit) {
+	}
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	/**
+	 * Reads and writes the rest of the stream.
+	 * 
+	 * @param buffer
+	 *            The buffer to copy through
+	 * @throws IOException
+	 *             if the stream did not end cleanly or is too long
+	 */
+	void drain(byte[] buffer) throws IOException {
+		while (read(buffer, 0, buffer.length) != -1) {
+			// Written by read
+		}
+	}
+}
@@ -145,6 +145,15 @@ public class Utils {
 		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.FROYO;
 	}
 
+	/**
+	 * Check if OS version is Honeycomb or later.
+	 * 
+	 * @return
+	 */
+	public static boolean hasHoneycomb() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	}
+
 	/**
 	 * Check if ActionBar is available.
 	 * 
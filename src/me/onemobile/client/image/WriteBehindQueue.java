@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.onemobile.client.image;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.Process;
+
+/**
+ * A bounded queue of disk cache writes run one at a time on a dedicated I/O
+ * thread. Writes are keyed, a write queued for a key that is still pending
+ * replaces the pending one instead of running twice.
+ */
+class WriteBehindQueue {
+	private final int mCapacity;
+	private final String mThreadName;
+	private final LinkedHashMap<String, Runnable> mPending = new LinkedHashMap<String, Runnable>();
+	private Thread mThread;
+	private boolean mRunning;
+
+	/**
+	 * @param capacity
+	 *            The maximum number of pending writes
+	 * @param threadName
+	 *            The name of the I/O thread
+	 */
+	WriteBehindQueue(int capacity, String threadName) {
+		mCapacity = capacity;
+		mThreadName = threadName;
+	}
+
+	/**
+	 * Queues a write.
+	 * 
+	 * @param key
+	 *            The key of the written entry
+	 * @param write
+	 *            The write to run on the I/O thread
+	 * @return false if the queue is full and the write was dropped
+	 */
+	synchronized boolean enqueue(String key, Runnable write) {
+		if (!mPending.containsKey(key) && mPending.size() >= mCapacity) {
+			return false;
+		}
+		// Replacing the value keeps the original place in the queue
+		mPending.put(key, write);
+		if (mThread == null) {
+			mThread = new Thread(mWorker, mThreadName);
+			mThread.setDaemon(true);
+			mThread.start();
+		}
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Blocks until all writes queued so far have run.
+	 */
+	synchronized void flush() {
+		boolean interrupted = false;
+		while (!mPending.isEmpty() || mRunning) {
+			try {
+				wait();
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private final Runnable mWorker = new Runnable() {
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			while (true) {
+				final Runnable write;
+				synchronized (WriteBehindQueue.this) {
+					mRunning = false;
+					WriteBehindQueue.this.notifyAll();
+					while (mPending.isEmpty()) {
+						try {
+							WriteBehindQueue.this.wait();
+						} catch (final InterruptedException e) {
+							// Keep serving the queue
+						}
+					}
+					final Iterator<Map.Entry<String, Runnable>> iterator = mPending.entrySet().iterator();
+					write = iterator.next().getValue();
+					iterator.remove();
+					mRunning = true;
+				}
+				try {
+					write.run();
+				} catch (final Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	};
+}